@@ -0,0 +1,86 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.bukkit.Location;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic audio and positions, so the benchmarks run without a server or a Discord connection.
+ */
+final class BenchmarkData {
+    // players are spread over a square this wide, about a quarter of them are in range of each other
+    static final double AREA = 512;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * A 20ms mono frame of a tone with some noise on top, roughly as loud as speech.
+     */
+    static short[] frame(Random random) {
+        short[] frame = new short[MixScratch.MONO_SAMPLES];
+        double frequency = 100 + random.nextInt(300);
+        for (int i = 0; i < frame.length; i++) {
+            double time = i / 48000.0;
+            frame[i] = (short) (6000 * Math.sin(2 * Math.PI * frequency * time) + random.nextGaussian() * 800);
+        }
+        return frame;
+    }
+
+    static SpatialIndex index(int players, Random random) {
+        SpatialIndex index = new SpatialIndex(64);
+        for (int i = 0; i < players; i++) {
+            // no players or worlds needed, everything is in the same (null) world
+            index.add(null, new Location(null, random.nextDouble() * AREA, 64 + random.nextDouble() * 16,
+                    random.nextDouble() * AREA));
+        }
+        return index;
+    }
+
+    /**
+     * Builds a snapshot the same way {@link PositionSnapshot#capture} does, minus the Bukkit lookups.
+     * Nobody is in a radio channel and every listener has a connection.
+     */
+    static PositionSnapshot snapshot(int players, long tick, Random random) {
+        SpatialIndex index = index(players, random);
+        String[] discordIds = new String[players];
+        Map<String, Integer> indexByDiscordId = new HashMap<>(players * 2);
+        int[] worlds = new int[players];
+        double[] xs = new double[players];
+        double[] ys = new double[players];
+        double[] zs = new double[players];
+        double[] lookXs = new double[players];
+        double[] lookZs = new double[players];
+        for (int i = 0; i < players; i++) {
+            discordIds[i] = Long.toString(100000000000000000L + i);
+            indexByDiscordId.put(discordIds[i], i);
+            xs[i] = index.getX(i);
+            ys[i] = index.getY(i);
+            zs[i] = index.getZ(i);
+            double yaw = random.nextDouble() * 2 * Math.PI;
+            lookXs[i] = -Math.sin(yaw);
+            lookZs[i] = Math.cos(yaw);
+        }
+        int[] neighbourStart = new int[players + 1];
+        int[] neighbours = new int[players * players];
+        int edges = 0;
+        for (int i = 0; i < players; i++) {
+            neighbourStart[i] = edges;
+            int end = index.collectNearby(i, PositionalDiscord.HEARING_RANGE, neighbours, edges);
+            Arrays.sort(neighbours, edges, end);
+            edges = end;
+        }
+        neighbourStart[players] = edges;
+        neighbours = Arrays.copyOf(neighbours, edges);
+        float[] volumes = new float[edges];
+        Arrays.fill(volumes, 1);
+        boolean[] audible = new boolean[players];
+        Arrays.fill(audible, true);
+        return new PositionSnapshot(tick, 5, discordIds, indexByDiscordId, worlds, xs, ys, zs, lookXs, lookZs,
+                new int[players], new boolean[players], new int[0], new int[players], new int[players],
+                neighbourStart, neighbours, volumes, new boolean[edges], audible);
+    }
+}
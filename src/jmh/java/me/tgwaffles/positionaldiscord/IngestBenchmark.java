@@ -0,0 +1,51 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What happens to each decoded frame before it reaches the mixer: the silence check, downmixing it into the
+ * speaker's input buffer, and the tick thread moving on to it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IngestBenchmark {
+    private short[] speech;
+    private short[] silence;
+    private final VoiceActivityDetector gate = new VoiceActivityDetector(150);
+    private final AudioRingBuffer inputQueue = new AudioRingBuffer(8, MixScratch.MONO_SAMPLES);
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        speech = new short[MixScratch.FRAME_SAMPLES];
+        silence = new short[MixScratch.FRAME_SAMPLES];
+        for (int i = 0; i < speech.length; i++) {
+            speech[i] = (short) (6000 * Math.sin(i / 20.0) + random.nextGaussian() * 800);
+            silence[i] = (short) (random.nextGaussian() * 20);
+        }
+    }
+
+    @Benchmark
+    public short[] speech() {
+        return ingest(speech);
+    }
+
+    @Benchmark
+    public short[] silence() {
+        return ingest(silence);
+    }
+
+    private short[] ingest(short[] decoded) {
+        if (gate.accept(decoded, decoded.length)) {
+            short[] frame = inputQueue.claim();
+            MixScratch.downmix(decoded, decoded.length, frame);
+            inputQueue.publish();
+        }
+        inputQueue.trim(1);
+        return inputQueue.next();
+    }
+}
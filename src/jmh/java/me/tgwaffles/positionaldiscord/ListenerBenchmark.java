@@ -0,0 +1,60 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One whole mixer tick's worth of work for a server of the given size, on a single thread: rebuilding the
+ * gain table for a new snapshot and mixing every listener from their neighbours.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ListenerBenchmark {
+    @Param({"10", "50", "200"})
+    int listeners;
+
+    private PositionSnapshot[] snapshots;
+    private short[][] frames;
+    private final GainTable gains = new GainTable();
+    private final short[] output = new short[MixScratch.FRAME_SAMPLES];
+    private int tick;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        // alternate between two so the gain table has to be rebuilt every time, like it is each server tick
+        snapshots = new PositionSnapshot[] {
+                BenchmarkData.snapshot(listeners, 0, random), BenchmarkData.snapshot(listeners, 1, random)
+        };
+        frames = new short[listeners][];
+        for (int i = 0; i < listeners; i++) {
+            frames[i] = BenchmarkData.frame(random);
+        }
+    }
+
+    @Benchmark
+    public GainTable gainTable() {
+        gains.update(snapshots[tick++ & 1]);
+        return gains;
+    }
+
+    @Benchmark
+    public short[] tick() {
+        PositionSnapshot snapshot = snapshots[tick++ & 1];
+        gains.update(snapshot);
+        MixScratch scratch = MixScratch.get();
+        for (int listener = 0; listener < snapshot.size(); listener++) {
+            scratch.begin();
+            for (int edge = snapshot.neighbourStart(listener); edge < snapshot.neighbourEnd(listener); edge++) {
+                scratch.addSource(frames[snapshot.neighbour(edge)], gains.left(edge), gains.right(edge));
+            }
+            if (scratch.hasAudio()) {
+                scratch.mixInto(output);
+            }
+        }
+        return output;
+    }
+}
@@ -0,0 +1,46 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mixing one listener's frame from a given number of speakers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MixBenchmark {
+    @Param({"1", "4", "16", "64"})
+    int sources;
+
+    private short[][] frames;
+    private float[] leftGains;
+    private float[] rightGains;
+    private final short[] output = new short[MixScratch.FRAME_SAMPLES];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        frames = new short[sources][];
+        leftGains = new float[sources];
+        rightGains = new float[sources];
+        for (int i = 0; i < sources; i++) {
+            frames[i] = BenchmarkData.frame(random);
+            leftGains[i] = random.nextFloat();
+            rightGains[i] = random.nextFloat();
+        }
+    }
+
+    @Benchmark
+    public short[] mix() {
+        MixScratch scratch = MixScratch.get();
+        scratch.begin();
+        for (int i = 0; i < sources; i++) {
+            scratch.addSource(frames[i], leftGains[i], rightGains[i]);
+        }
+        scratch.mixInto(output);
+        return output;
+    }
+}
@@ -0,0 +1,69 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilding the spatial index and finding everyone's neighbours, as the main thread does every server tick,
+ * plus the per edge gain maths on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProximityBenchmark {
+    @Param({"10", "50", "200"})
+    int players;
+
+    private final SpatialIndex index = new SpatialIndex(64);
+    private Location[] locations;
+    private int[] output;
+    private double[] offsets;
+    private final double[] gains = new double[2];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        locations = new Location[players];
+        for (int i = 0; i < players; i++) {
+            locations[i] = new Location(null, random.nextDouble() * BenchmarkData.AREA,
+                    64 + random.nextDouble() * 16, random.nextDouble() * BenchmarkData.AREA);
+        }
+        output = new int[players];
+        offsets = new double[players * 5];
+        for (int i = 0; i < offsets.length; i += 5) {
+            offsets[i] = random.nextGaussian() * 40;
+            offsets[i + 1] = random.nextGaussian() * 4;
+            offsets[i + 2] = random.nextGaussian() * 40;
+            double yaw = random.nextDouble() * 2 * Math.PI;
+            offsets[i + 3] = -Math.sin(yaw);
+            offsets[i + 4] = Math.cos(yaw);
+        }
+    }
+
+    @Benchmark
+    public int nearbyPlayers() {
+        index.clear();
+        for (Location location : locations) {
+            index.add(null, location);
+        }
+        int found = 0;
+        for (int i = 0; i < players; i++) {
+            found += index.collectNearby(i, PositionalDiscord.HEARING_RANGE, output, 0);
+        }
+        return found;
+    }
+
+    @Benchmark
+    public double angularVolume() {
+        double total = 0;
+        for (int i = 0; i < offsets.length; i += 5) {
+            PositionalDiscord.getAngularVolume(offsets[i], offsets[i + 1], offsets[i + 2], offsets[i + 3],
+                    offsets[i + 4], 1, false, 5, gains);
+            total += gains[0] + gains[1];
+        }
+        return total;
+    }
+}
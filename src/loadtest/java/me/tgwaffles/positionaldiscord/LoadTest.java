@@ -0,0 +1,431 @@
+package me.tgwaffles.positionaldiscord;
+
+import net.dv8tion.jda.api.audio.OpusPacket;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the real forwarder and mixer against simulated players, with no server or Discord connection,
+ * and reports how they cope as the player count grows.
+ * <p>
+ * Bukkit's Server, Player and World are in-process fakes, and each player's Discord connection is replaced by
+ * feeding speech-like PCM straight into their input buffer (after the point where Opus would have been decoded,
+ * with a stand-in for the packet it came from so lone speakers can be passed through) and draining their
+ * output the way JDA's send loop does, every 20ms. Players walk around, a share of them sit in radio channels,
+ * and everyone talks in bursts.
+ * <p>
+ * Since frames skip the packet ring, jitter buffer, silence check and Opus decoding, the CPU figures only cover
+ * mixing, though decoding is usually the larger share of the work on a live server. Replaying a capture with
+ * {@link SessionReplay} runs the whole input path.
+ * <p>
+ * Run with {@code ./gradlew loadTest -Pplayers=10,50,200}.
+ */
+public class LoadTest {
+    private static final int[] DEFAULT_PLAYERS = {10, 25, 50, 100, 200};
+    private static final long WARMUP_MILLIS = 5000;
+    private static final long MEASURE_MILLIS = 15000;
+    // players are spread over a square this wide, walking at about walking speed
+    private static final double AREA = 512;
+    private static final double STEP = 4.3 / 20;
+    private static final double RADIO_SHARE = 0.2;
+    // average talk spurt and pause, in 20ms frames
+    private static final double TALK_FRAMES = 75;
+    private static final double PAUSE_FRAMES = 225;
+    // RMS of the frames from speechFrame, the level the silence check would have tagged them with
+    private static final int SPEECH_LEVEL = 3540;
+    // stands in for the Opus packet each frame was decoded from, which is only ever sent on as it is
+    private static final byte[] OPUS_FRAME = {(byte) 0xF8, (byte) 0xFF, (byte) 0xFE};
+
+    private final int playerCount;
+    // setting up, then one for each thread driving the players, so a seed always plays out the same however
+    // the threads' draws interleave
+    private final Random random;
+    private final Random walking;
+    private final Random speaking;
+    private final Logger logger = Logger.getLogger("PositionalDiscord LoadTest");
+    private final World world;
+    private final List<SimulatedPlayer> players = new ArrayList<>();
+    private final List<Player> onlinePlayers = new ArrayList<>();
+    private final short[][] speech;
+
+    private PositionalDiscord plugin;
+    private volatile long framesOffered;
+    private volatile long framesSent;
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = DEFAULT_PLAYERS;
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i].trim());
+            }
+        }
+        System.out.println("CPU is the mix alone, frames are fed in already decoded");
+        System.out.println(String.format("%8s %8s %10s %14s %10s %10s %10s %10s %9s %9s %9s", "players", "talking",
+                "mix cpu", "mix/listener", "tick used", "tick p99", "lat p50", "lat p99", "dropped", "overruns",
+                "passthru"));
+        for (int count : counts) {
+            Result result = new LoadTest(count, count).run();
+            System.out.println(String.format(
+                    "%8d %8.1f %9.1f%% %12.1fus %9.1f%% %8.2fms %8.1fms %8.1fms %8.2f%% %9d %8.1f%%",
+                    count, result.talking, result.mixerCpu * 100, result.cpuPerListenerMicros,
+                    result.tickUtilisation * 100, result.tickP99Millis, result.latencyP50Millis,
+                    result.latencyP99Millis, result.dropRate * 100, result.overruns, result.passthroughShare * 100));
+        }
+    }
+
+    LoadTest(int playerCount, long seed) {
+        this.playerCount = playerCount;
+        random = new Random(seed);
+        walking = new Random(random.nextLong());
+        speaking = new Random(random.nextLong());
+        logger.setLevel(Level.WARNING);
+        world = fake(World.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                    return "world";
+                case "getUID":
+                    return new UUID(0, 1);
+                default:
+                    return objectMethod(proxy, method, args, "World");
+            }
+        });
+        // a handful of different voices is plenty, every speaker starts at a different point
+        speech = new short[50][];
+        for (int i = 0; i < speech.length; i++) {
+            speech[i] = speechFrame(i);
+        }
+    }
+
+    Result run() throws Exception {
+        File dataFolder = Files.createTempDirectory("positionaldiscord-loadtest").toFile();
+        Server server = fake(Server.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getLogger":
+                    return logger;
+                case "getOnlinePlayers":
+                    return Collections.unmodifiableList(onlinePlayers);
+                case "getPlayer":
+                    for (SimulatedPlayer player : players) {
+                        if (player.uuid.equals(args[0]) || player.name.equals(args[0])) {
+                            return player.player;
+                        }
+                    }
+                    return null;
+                case "getName":
+                case "getVersion":
+                case "getBukkitVersion":
+                    return "LoadTest";
+                default:
+                    return objectMethod(proxy, method, args, "Server");
+            }
+        });
+        plugin = new PositionalDiscord(new JavaPluginLoader(server),
+                new PluginDescriptionFile("PositionalDiscord", "loadtest", PositionalDiscord.class.getName()),
+                dataFolder, new File(dataFolder, "PositionalDiscord.jar"));
+        plugin.log = logger;
+        plugin.factor = plugin.getConfig().getInt("factor");
+        plugin.forwarder = new AudioForwarder(plugin);
+        AudioForwarder forwarder = plugin.forwarder;
+        forwarder.mixer.start();
+
+        int channels = Math.max(1, playerCount / 8);
+        for (int i = 0; i < playerCount; i++) {
+            SimulatedPlayer player = new SimulatedPlayer(i);
+            players.add(player);
+            onlinePlayers.add(player.player);
+            forwarder.link(player.uuid, player.discordId);
+            if (random.nextDouble() < RADIO_SHARE) {
+                int channel = 1 + random.nextInt(channels);
+                plugin.playerChannels.put(player.uuid, channel);
+                plugin.channelIndex.add(player.player, channel);
+            }
+        }
+        for (SimulatedPlayer player : players) {
+            player.handler = forwarder.openPipeline(player.discordId, null);
+            player.inputQueue = forwarder.slots.inputOf(player.discordId);
+        }
+
+        // the server's main thread, JDA's receive threads and JDA's send loops
+        ScheduledExecutorService drivers = Executors.newScheduledThreadPool(3,
+                new MixerEngine.NamedThreadFactory("PositionalDiscord LoadTest"));
+        drivers.scheduleAtFixedRate(this::serverTick, 0, 50, TimeUnit.MILLISECONDS);
+        drivers.scheduleAtFixedRate(this::speak, 0, MixerEngine.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        drivers.scheduleAtFixedRate(this::drain, 0, MixerEngine.TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(WARMUP_MILLIS);
+        Map<Long, Long> cpuBefore = mixerCpuTimes();
+        long[] latencyBefore = forwarder.metrics.getLatencyCounts();
+        long droppedBefore = dropped(forwarder.metrics);
+        long offeredBefore = framesOffered;
+        long overrunsBefore = forwarder.metrics.getTickOverruns();
+        long ticksBefore = forwarder.metrics.getTickCount();
+        long sentBefore = framesSent;
+        long passedThroughBefore = forwarder.metrics.getOutputFramesPassedThrough();
+        double talkingTotal = 0;
+        int talkingSamples = 0;
+        long start = System.nanoTime();
+        for (long elapsed = 0; elapsed < MEASURE_MILLIS; elapsed += 500) {
+            Thread.sleep(500);
+            int talking = 0;
+            for (SimulatedPlayer player : players) {
+                talking += player.talking ? 1 : 0;
+            }
+            talkingTotal += talking;
+            talkingSamples++;
+        }
+        long wallNanos = System.nanoTime() - start;
+        Map<Long, Long> cpuAfter = mixerCpuTimes();
+        long[] latency = forwarder.metrics.getLatencyCounts();
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] -= latencyBefore[i];
+        }
+
+        Result result = new Result();
+        long cpuNanos = 0;
+        for (Map.Entry<Long, Long> entry : cpuAfter.entrySet()) {
+            cpuNanos += entry.getValue() - cpuBefore.getOrDefault(entry.getKey(), 0L);
+        }
+        long ticks = Math.max(1, forwarder.metrics.getTickCount() - ticksBefore);
+        result.talking = talkingTotal / talkingSamples;
+        result.mixerCpu = (double) cpuNanos / wallNanos;
+        result.cpuPerListenerMicros = cpuNanos / 1000.0 / ticks / playerCount;
+        result.tickUtilisation = forwarder.metrics.getTickUtilisation();
+        result.tickP99Millis = forwarder.metrics.getTickMillisP99();
+        result.latencyP50Millis = Histogram.percentile(latency, 50) / 1e3;
+        result.latencyP99Millis = Histogram.percentile(latency, 99) / 1e3;
+        long offered = Math.max(1, framesOffered - offeredBefore);
+        result.dropRate = (double) (dropped(forwarder.metrics) - droppedBefore) / offered;
+        result.overruns = forwarder.metrics.getTickOverruns() - overrunsBefore;
+        // lone speakers in small radio channels, which never hear anyone else
+        result.passthroughShare = (double) (forwarder.metrics.getOutputFramesPassedThrough() - passedThroughBefore)
+                / Math.max(1, framesSent - sentBefore);
+
+        drivers.shutdownNow();
+        drivers.awaitTermination(5, TimeUnit.SECONDS);
+        forwarder.shutdown();
+        deleteAll(dataFolder);
+        return result;
+    }
+
+    /**
+     * Moves everyone a little and publishes a new snapshot, like the plugin's task does every server tick.
+     */
+    private void serverTick() {
+        for (SimulatedPlayer player : players) {
+            player.walk();
+        }
+        plugin.publishSnapshot();
+    }
+
+    /**
+     * Queues a frame for everyone mid talk spurt, where the decoder would have put it.
+     */
+    private void speak() {
+        long offered = 0;
+        long now = System.nanoTime();
+        for (SimulatedPlayer player : players) {
+            if (!player.nextFrameTalking()) {
+                continue;
+            }
+            offered++;
+            short[] frame = player.inputQueue.claim();
+            if (frame == null) {
+                continue;
+            }
+            System.arraycopy(speech[player.voice++ % speech.length], 0, frame, 0, frame.length);
+            player.inputQueue.attachPacket(player.stream.packet((char) player.sequence,
+                    player.sequence * OpusPacket.OPUS_FRAME_SIZE, OPUS_FRAME));
+            player.sequence++;
+            player.inputQueue.stamp(now);
+            player.inputQueue.level(SPEECH_LEVEL);
+            player.inputQueue.publish();
+        }
+        framesOffered += offered;
+    }
+
+    /**
+     * Takes a frame from everyone who has one, like JDA does every 20ms.
+     */
+    private void drain() {
+        long sent = 0;
+        for (SimulatedPlayer player : players) {
+            if (player.handler.canProvide() && player.handler.provide20MsAudio() != null) {
+                sent++;
+            }
+        }
+        framesSent += sent;
+    }
+
+    private static long dropped(AudioMetrics metrics) {
+        return metrics.getInputFramesDropped() + metrics.getOutputFramesOverflowed();
+    }
+
+    private static Map<Long, Long> mixerCpuTimes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Map<Long, Long> times = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("PositionalDiscord Mixer")) {
+                times.put(thread.getId(), threads.getThreadCpuTime(thread.getId()));
+            }
+        }
+        return times;
+    }
+
+    /**
+     * A tone with a slowly moving pitch and some noise, loud enough to count as speech.
+     */
+    private short[] speechFrame(int index) {
+        short[] frame = new short[MixScratch.MONO_SAMPLES];
+        double frequency = 110 + 10 * index;
+        for (int i = 0; i < frame.length; i++) {
+            double time = (index * frame.length + i) / 48000.0;
+            frame[i] = (short) (5000 * Math.sin(2 * Math.PI * frequency * time) + random.nextGaussian() * 600);
+        }
+        return frame;
+    }
+
+    private static void deleteAll(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T fake(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(LoadTest.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    /**
+     * Answers the Object methods, and anything else with a zero, false or null.
+     */
+    static Object objectMethod(Object proxy, Method method, Object[] args, String name) {
+        switch (method.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return name;
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        }
+        return null;
+    }
+
+    private class SimulatedPlayer {
+        final int index;
+        final UUID uuid;
+        final String name;
+        final String discordId;
+        final long snowflake;
+        final Player player;
+        AudioForwarder.AudioHandler handler;
+        AudioRingBuffer inputQueue;
+        // only written by the server tick thread, read by Bukkit calls from the same thread
+        double x;
+        double y = 64;
+        double z;
+        float yaw;
+        // changed by the speaking thread, read when sampling how many are talking
+        volatile boolean talking;
+        int voice;
+        final OpusStream stream;
+        int sequence;
+
+        SimulatedPlayer(int index) {
+            this.index = index;
+            uuid = new UUID(0x5044L, index);
+            name = "Player" + index;
+            snowflake = 100000000000000000L + index;
+            discordId = Long.toString(snowflake);
+            stream = new OpusStream(snowflake, index, false);
+            x = random.nextDouble() * AREA;
+            z = random.nextDouble() * AREA;
+            yaw = random.nextFloat() * 360;
+            voice = random.nextInt(speech.length);
+            player = fake(Player.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getUniqueId":
+                        return uuid;
+                    case "getName":
+                    case "getDisplayName":
+                        return name;
+                    case "getLocation":
+                        return new Location(world, x, y, z, yaw, 0);
+                    case "getWorld":
+                        return world;
+                    case "isOnline":
+                        return true;
+                    default:
+                        return objectMethod(proxy, method, args, name);
+                }
+            });
+        }
+
+        void walk() {
+            yaw += (walking.nextFloat() - 0.5f) * 20;
+            double radians = Math.toRadians(yaw);
+            x = Math.min(AREA, Math.max(0, x - Math.sin(radians) * STEP));
+            z = Math.min(AREA, Math.max(0, z + Math.cos(radians) * STEP));
+        }
+
+        boolean nextFrameTalking() {
+            // talk spurts and pauses with exponentially distributed lengths
+            if (talking ? speaking.nextDouble() < 1 / TALK_FRAMES : speaking.nextDouble() < 1 / PAUSE_FRAMES) {
+                talking = !talking;
+            }
+            return talking;
+        }
+    }
+
+    static class Result {
+        double talking;
+        double mixerCpu;
+        double cpuPerListenerMicros;
+        double tickUtilisation;
+        double tickP99Millis;
+        double latencyP50Millis;
+        double latencyP99Millis;
+        double dropRate;
+        long overruns;
+        double passthroughShare;
+    }
+}
@@ -0,0 +1,46 @@
+package me.tgwaffles.positionaldiscord;
+
+import net.dv8tion.jda.api.audio.OpusPacket;
+import net.dv8tion.jda.internal.audio.AudioPacket;
+import net.dv8tion.jda.internal.audio.Decoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One speaker's stream of Opus packets, built the way JDA would have handed them to the plugin.
+ * <p>
+ * JDA has no public way to make an {@link OpusPacket}: it needs the RTP packet it came from and the decoder for
+ * its stream, and both of those are in {@code net.dv8tion.jda.internal.audio}. This is the only class in the
+ * load test tooling that touches them, so if a JDA update moves or changes them it's the only one to fix. The
+ * plugin itself never depends on JDA internals.
+ */
+public class OpusStream {
+    private static final int RTP_HEADER = 12;
+
+    private final long userId;
+    private final int ssrc;
+    // JDA keeps a decoder per stream, carrying its state from one packet to the next
+    private final Decoder decoder;
+
+    /**
+     * @param decoded
+     *        Whether the packets can be decoded, leave out for packets that only stand in for what frames
+     *        already fed in decoded came from
+     */
+    public OpusStream(long userId, int ssrc, boolean decoded) {
+        this.userId = userId;
+        this.ssrc = ssrc;
+        decoder = decoded ? new Decoder(ssrc) { } : null;
+    }
+
+    /**
+     * Builds the packet JDA would have handed over for an RTP packet carrying this Opus payload.
+     */
+    public OpusPacket packet(char sequence, int timestamp, byte[] opus) {
+        byte[] rtp = new byte[RTP_HEADER + opus.length];
+        // version 2 without padding, extensions or CSRCs, then the payload type Discord uses for Opus
+        ByteBuffer.wrap(rtp).put((byte) 0x80).put((byte) 0x78).putChar(sequence).putInt(timestamp).putInt(ssrc)
+                .put(opus);
+        return new OpusPacket(new AudioPacket(rtp), userId, decoder);
+    }
+}
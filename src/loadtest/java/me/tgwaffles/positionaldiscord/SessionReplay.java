@@ -0,0 +1,295 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.bukkit.Server;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Feeds a session captured by {@link SessionRecorder} back through the real pipeline as fast as it will go.
+ * <p>
+ * Snapshots are published and packets handed to the forwarder in the order they were recorded, with the times
+ * they arrived, so they go through the packet rings, jitter buffers, Opus decoding and silence check just like
+ * they did live. The mixer is ticked by hand every 20ms of recorded time. Reports how much faster than real
+ * time that ran, tick times and drops, and a checksum of everything the listeners would have been sent, so two
+ * builds can be compared on the same night's traffic.
+ * <p>
+ * Run with {@code ./gradlew replay -Pcapture=plugins/PositionalDiscord/capture.pdr}.
+ */
+public class SessionReplay {
+    private static final long TICK_NANOS = MixerEngine.TICK_MILLIS * 1_000_000L;
+
+    private final MappedByteBuffer mapping;
+    private final long capacity;
+    private final List<Record> records = new ArrayList<>();
+    private long skippedBytes;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: SessionReplay <capture file>");
+            System.exit(1);
+        }
+        SessionReplay replay = new SessionReplay(new File(args[0]));
+        replay.run();
+    }
+
+    SessionReplay(File capture) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(capture, "r")) {
+            mapping = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        if (mapping.getInt(0) != SessionRecorder.FILE_MAGIC) {
+            throw new IOException(capture + " isn't a capture file");
+        }
+        int version = mapping.getShort(4);
+        if (version != SessionRecorder.VERSION) {
+            throw new IOException(capture + " was written by a different version (" + version + ")");
+        }
+        capacity = mapping.getLong(SessionRecorder.CAPACITY_OFFSET);
+        long cursor = mapping.getLong(SessionRecorder.CURSOR_OFFSET);
+        read(Math.max(0, cursor - capacity), cursor);
+        // workers finish their records in any order, and snapshots are stamped on another thread
+        records.sort(Comparator.comparingLong(record -> record.nanos));
+    }
+
+    private void read(long start, long end) {
+        long position = start;
+        while (position + SessionRecorder.RECORD_HEADER <= end) {
+            int type = getInt(position + 4);
+            int length = getInt(position + 8);
+            boolean valid = getInt(position) == SessionRecorder.RECORD_MAGIC
+                    && (type == SessionRecorder.PACKET || type == SessionRecorder.SNAPSHOT)
+                    && length >= SessionRecorder.RECORD_HEADER && length % 8 == 0 && position + length <= end;
+            if (!valid) {
+                // overwritten or cut short, look for the next record
+                position += 8;
+                skippedBytes += 8;
+                continue;
+            }
+            long nanos = getLong(position + 16);
+            long at = position + SessionRecorder.RECORD_HEADER;
+            if (type == SessionRecorder.PACKET) {
+                int payload = getInt(position + 12);
+                if (SessionRecorder.RECORD_HEADER + SessionRecorder.PACKET_FIELDS + payload > length) {
+                    position += 8;
+                    skippedBytes += 8;
+                    continue;
+                }
+                records.add(new Record(nanos, getLong(at), getInt(at + 8), (char) getInt(at + 12), getInt(at + 16),
+                        getBytes(at + SessionRecorder.PACKET_FIELDS, payload), null, null));
+            } else {
+                readSnapshot(nanos, at);
+            }
+            position += length;
+        }
+    }
+
+    private void readSnapshot(long nanos, long at) {
+        int size = getInt(at);
+        int edges = getInt(at + 4);
+        int members = getInt(at + 8);
+        int factor = getInt(at + 12);
+        long tick = getLong(at + 16);
+        at += 24;
+        String[] discordIds = new String[size];
+        Map<String, Integer> indexByDiscordId = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++, at += 8) {
+            discordIds[i] = Long.toUnsignedString(getLong(at));
+            indexByDiscordId.put(discordIds[i], i);
+        }
+        double[][] doubles = new double[5][size];
+        for (double[] values : doubles) {
+            for (int i = 0; i < size; i++, at += 8) {
+                values[i] = Double.longBitsToDouble(getLong(at));
+            }
+        }
+        int[] worlds = new int[size];
+        int[] channels = new int[size];
+        int[] channelStart = new int[size];
+        int[] channelEnd = new int[size];
+        int[] channelMembers = new int[members];
+        int[] neighbourStart = new int[size + 1];
+        int[] neighbours = new int[edges];
+        for (int[] values : new int[][] {worlds, channels, channelStart, channelEnd, channelMembers, neighbourStart,
+                neighbours}) {
+            for (int i = 0; i < values.length; i++, at += 4) {
+                values[i] = getInt(at);
+            }
+            at = SessionRecorder.align(at);
+        }
+        float[] volumes = new float[edges];
+        for (int i = 0; i < edges; i++, at += 4) {
+            volumes[i] = Float.intBitsToFloat(getInt(at));
+        }
+        at = SessionRecorder.align(at);
+        boolean[] inChannel = new boolean[size];
+        boolean[] audible = new boolean[size];
+        boolean[] connected = new boolean[size];
+        boolean[] sharedChannel = new boolean[edges];
+        for (boolean[] values : new boolean[][] {inChannel, audible, connected, sharedChannel}) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = mapping.get(index(at++)) != 0;
+            }
+            at = SessionRecorder.align(at);
+        }
+        PositionSnapshot snapshot = new PositionSnapshot(tick, factor, discordIds, indexByDiscordId, worlds,
+                doubles[0], doubles[1], doubles[2], doubles[3], doubles[4], channels, inChannel, channelMembers,
+                channelStart, channelEnd, neighbourStart, neighbours, volumes, sharedChannel, audible);
+        records.add(new Record(nanos, 0, 0, (char) 0, 0, null, snapshot, connected));
+    }
+
+    void run() throws Exception {
+        if (records.isEmpty()) {
+            System.out.println("Nothing to replay (" + skippedBytes + " bytes skipped)");
+            return;
+        }
+        Logger logger = Logger.getLogger("PositionalDiscord Replay");
+        logger.setLevel(Level.WARNING);
+        File dataFolder = Files.createTempDirectory("positionaldiscord-replay").toFile();
+        Server server = LoadTest.fake(Server.class, (proxy, method, args) -> {
+            if (method.getName().equals("getLogger")) {
+                return logger;
+            } else if (method.getName().equals("getOnlinePlayers")) {
+                return Collections.emptyList();
+            }
+            return LoadTest.objectMethod(proxy, method, args, "Server");
+        });
+        PositionalDiscord plugin = new PositionalDiscord(new JavaPluginLoader(server),
+                new PluginDescriptionFile("PositionalDiscord", "replay", PositionalDiscord.class.getName()),
+                dataFolder, new File(dataFolder, "PositionalDiscord.jar"));
+        plugin.log = logger;
+        plugin.forwarder = new AudioForwarder(plugin);
+        AudioForwarder forwarder = plugin.forwarder;
+
+        // everyone who was ever connected gets a listener, everyone else who spoke just an input buffer
+        List<AudioForwarder.AudioHandler> handlers = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Record record : records) {
+            if (record.snapshot == null) {
+                continue;
+            }
+            for (int i = 0; i < record.snapshot.size(); i++) {
+                String discordId = record.snapshot.getDiscordId(i);
+                if (record.connected[i] && seen.add(discordId)) {
+                    handlers.add(forwarder.openPipeline(discordId, null));
+                }
+            }
+        }
+        for (Record record : records) {
+            if (record.snapshot == null && seen.add(Long.toUnsignedString(record.speaker))) {
+                forwarder.slots.open(Long.toUnsignedString(record.speaker), forwarder.voiceActivityThreshold);
+            }
+        }
+        // each stream keeps its own decoder, carrying its state from one packet to the next
+        Map<Integer, OpusStream> streams = new HashMap<>();
+
+        CRC32 checksum = new CRC32();
+        long packetsIn = 0;
+        long framesOut = 0;
+        long first = records.get(0).nanos;
+        long last = records.get(records.size() - 1).nanos;
+        int next = 0;
+        long start = System.nanoTime();
+        // arrivals are moved onto this run's clock, only the gaps between them matter to the jitter buffers
+        long arrivalOffset = start - first;
+        long ticks = 0;
+        for (long tickEnd = first + TICK_NANOS; next < records.size(); tickEnd += TICK_NANOS, ticks++) {
+            while (next < records.size() && records.get(next).nanos < tickEnd) {
+                Record record = records.get(next++);
+                if (record.snapshot != null) {
+                    plugin.positionSnapshot = record.snapshot;
+                    continue;
+                }
+                packetsIn++;
+                OpusStream stream = streams.computeIfAbsent(record.ssrc,
+                        ssrc -> new OpusStream(record.speaker, ssrc, true));
+                forwarder.receive(stream.packet(record.sequence, record.timestamp, record.opus),
+                        record.nanos + arrivalOffset);
+            }
+            forwarder.mixer.runTick();
+            for (AudioForwarder.AudioHandler handler : handlers) {
+                if (handler.canProvide()) {
+                    ByteBuffer sent = handler.provide20MsAudio();
+                    if (sent != null) {
+                        checksum.update(sent);
+                        framesOut++;
+                    }
+                }
+            }
+        }
+        long wallNanos = System.nanoTime() - start;
+        AudioMetrics metrics = forwarder.metrics;
+        double recordedSeconds = (last - first) / 1e9;
+        System.out.println(String.format("Replayed %.1fs of audio (%d ticks) in %.1fs, %.1fx real time",
+                recordedSeconds, ticks, wallNanos / 1e9, recordedSeconds / (wallNanos / 1e9)));
+        System.out.println(String.format("Listeners %d, speakers %d, packets in %d, frames out %d",
+                handlers.size(), forwarder.slots.current().size(), packetsIn, framesOut));
+        System.out.println(String.format("Packets %d overflowed, %d unheard, %d late, frames %d concealed, " +
+                        "%d silent, dropped %d + %d", metrics.getPacketsOverflowed(), metrics.getPacketsSkipped(),
+                metrics.getPacketsLate(), metrics.getFramesConcealed(), metrics.getFramesSilent(),
+                metrics.getInputFramesDropped(), metrics.getOutputFramesOverflowed()));
+        System.out.println(String.format("Tick p50 %.2fms, p99 %.2fms, max %.2fms", metrics.getTickMillisP50(),
+                metrics.getTickMillisP99(), metrics.getMaxTickMillis()));
+        System.out.println(String.format("Output checksum %08x (%d bytes of the capture skipped)",
+                checksum.getValue(), skippedBytes));
+        forwarder.shutdown();
+        for (File child : Objects.requireNonNull(dataFolder.listFiles())) {
+            Files.deleteIfExists(child.toPath());
+        }
+        Files.deleteIfExists(dataFolder.toPath());
+    }
+
+    private int index(long at) {
+        return (int) (SessionRecorder.FILE_HEADER + at % capacity);
+    }
+
+    private int getInt(long at) {
+        return mapping.getInt(index(at));
+    }
+
+    private long getLong(long at) {
+        return mapping.getLong(index(at));
+    }
+
+    private byte[] getBytes(long at, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mapping.get(index(at + i));
+        }
+        return bytes;
+    }
+
+    private static class Record {
+        final long nanos;
+        // a packet's, the rest are left empty for a snapshot
+        final long speaker;
+        final int ssrc;
+        final char sequence;
+        final int timestamp;
+        final byte[] opus;
+        final PositionSnapshot snapshot;
+        final boolean[] connected;
+
+        Record(long nanos, long speaker, int ssrc, char sequence, int timestamp, byte[] opus,
+               PositionSnapshot snapshot, boolean[] connected) {
+            this.nanos = nanos;
+            this.speaker = speaker;
+            this.ssrc = ssrc;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.opus = opus;
+            this.snapshot = snapshot;
+            this.connected = connected;
+        }
+    }
+}
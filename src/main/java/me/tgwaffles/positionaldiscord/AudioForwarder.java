@@ -2,16 +2,19 @@ package me.tgwaffles.positionaldiscord;
 
 import net.dv8tion.jda.api.audio.AudioReceiveHandler;
 import net.dv8tion.jda.api.audio.AudioSendHandler;
-import net.dv8tion.jda.api.audio.UserAudio;
+import net.dv8tion.jda.api.audio.OpusPacket;
 import net.dv8tion.jda.api.audio.hooks.ConnectionListener;
 import net.dv8tion.jda.api.audio.hooks.ConnectionStatus;
 import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.events.guild.GuildAvailableEvent;
+import net.dv8tion.jda.api.events.guild.GuildReadyEvent;
 import net.dv8tion.jda.api.events.guild.voice.GuildVoiceUpdateEvent;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.api.managers.AudioManager;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nonnull;
@@ -19,60 +22,113 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
-import java.util.stream.Collectors;
 
 public class AudioForwarder extends ListenerAdapter
 {
     PositionalDiscord plugin;
     private ConcurrentHashMap<String, UUID> idsToUUIDs = new ConcurrentHashMap<>();
-    private final String fileDir;
+    private final PersistenceStore store;
     public static final char[] digits = "0123456789".toCharArray();
     private final ConcurrentHashMap<UUID, String> uuidsToIds = new ConcurrentHashMap<>();
-    public final ConcurrentHashMap<String, Queue<byte[]>> inputQueueMap = new ConcurrentHashMap<>();
-    public final ConcurrentHashMap<String, Queue<byte[]>> outputQueueMap = new ConcurrentHashMap<>();
+    // ID of the proximity channel each discord user is sitting in, kept up to date from voice state events.
+    // Only IDs are kept, JDA replaces its entities when it rebuilds its cache after a reconnect
+    private final ConcurrentHashMap<String, String> proximityChannels = new ConcurrentHashMap<>();
+    // ID of the guild whose audio connection is serving each discord user
+    private final ConcurrentHashMap<String, String> servingGuilds = new ConcurrentHashMap<>();
+    // connections left open after their user logged off, closed unless they come back in time
+    private final ConcurrentHashMap<String, BukkitRunnable> pendingCloses = new ConcurrentHashMap<>();
+    // server ticks a login that started connecting at pre-login gets to finish, however short the grace period
+    private static final long LOGIN_TIMEOUT_TICKS = 30 * 20L;
+    // a lost connection is only reopened this many times in a row before giving up on it
+    private static final int MAX_RECONNECTS = 3;
+    // the jitter buffer plays out one frame a tick, this only catches up if the mixer missed a tick
+    private static final int INPUT_BACKLOG = 2;
+    // every connected player's packets as they came from discord (only decoded if someone can hear the speaker),
+    // input and output buffers
+    public final VoiceSlots slots = new VoiceSlots();
+    // slots of the speakers to decode this tick, filled by the tick thread and read by the workers
+    private int[] decodeSlots = new int[16];
     private final Random random = new Random();
+    final MixerEngine mixer;
+    final AudioMetrics metrics;
+    // only set while a session is being captured for replay
+    volatile SessionRecorder recorder;
+    // how close (as a share) to full volume a lone speaker has to be for their packets to be sent on as they are
+    final double passthroughTolerance;
+    final int voiceActivityThreshold;
+    // how long a connection is kept open after its user leaves the server, in server ticks
+    final long reconnectGraceTicks;
+    // most speakers mixed for one listener, and how loud they have to come out to be mixed at all
+    final int sourceBudget;
+    final float sourceThreshold;
 
 
     public AudioForwarder(PositionalDiscord caller) {
 
         plugin = caller;
-        fileDir = plugin.getDataFolder().getAbsolutePath() + "/stored.db";
+        voiceActivityThreshold = Math.max(0, plugin.getConfig().getInt("voiceActivityThreshold", 150));
+        reconnectGraceTicks = Math.max(0, plugin.getConfig().getInt("reconnectGraceSeconds", 60)) * 20L;
+        passthroughTolerance = plugin.getConfig().getDouble("opusPassthroughTolerance", 0.05);
+        sourceBudget = Math.max(0, plugin.getConfig().getInt("maxSourcesPerListener", 8));
+        sourceThreshold = (float) Math.max(0, plugin.getConfig().getDouble("minSourceLevel", 8));
+        mixer = new MixerEngine(this, plugin.getConfig().getInt("mixerThreads"));
+        store = new PersistenceStore(plugin.getDataFolder(), plugin.getLogger());
         try {
             loadFile();
-        } catch (IOException | ClassNotFoundException e) {
-            plugin.getLogger().log(Level.WARNING, "Couldn't open stored db. " +
-                    "Can be ignored if the plugin has never been used before.");
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Couldn't load stored data. Users will have to link their " +
+                    "accounts again unless it's restored.", e);
+        }
+        int captureMegabytes = plugin.getConfig().getInt("captureMegabytes", 0);
+        if (captureMegabytes > 0) {
+            File captureFile = new File(plugin.getDataFolder(), "capture.pdr");
+            try {
+                recorder = new SessionRecorder(captureFile, captureMegabytes);
+                plugin.getLogger().log(Level.INFO, "Capturing voice traffic to " + captureFile);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Couldn't start capturing to " + captureFile, e);
+            }
         }
+        metrics = new AudioMetrics(this);
+        metrics.register();
     }
 
-    @SuppressWarnings("unchecked")
-    public void loadFile() throws IOException, ClassNotFoundException {
-        try (FileInputStream loadingFileStream = new FileInputStream(fileDir)) {
-            try (ObjectInputStream objectStream = new ObjectInputStream(loadingFileStream)) {
-                idsToUUIDs = (ConcurrentHashMap<String, UUID>) objectStream.readObject();
-                for (Map.Entry<String, UUID> entry : idsToUUIDs.entrySet()) {
-                    uuidsToIds.put(entry.getValue(), entry.getKey());
-                }
-                plugin.playerChannels = (HashMap<UUID, Integer>) objectStream.readObject();
-                plugin.playerVolumesMap = (HashMap<UUID, HashMap<UUID, Integer>>) objectStream.readObject();
-                plugin.lockedChannels = (HashMap<Integer, UUID>) objectStream.readObject();
-                plugin.registrationCodes = (HashMap<String, RegistrationData>) objectStream.readObject();
-            }
+    public void loadFile() throws IOException {
+        PersistenceStore.StoredData data = store.load();
+        if (data == null) {
+            return;
+        }
+        idsToUUIDs = new ConcurrentHashMap<>(data.links);
+        for (Map.Entry<String, UUID> entry : idsToUUIDs.entrySet()) {
+            uuidsToIds.put(entry.getValue(), entry.getKey());
         }
+        plugin.playerChannels = data.channels;
+        plugin.playerVolumesMap = data.volumes;
+        plugin.lockedChannels = data.locks;
+        plugin.registrationCodes = data.registrationCodes;
     }
 
-    public void saveFile() throws IOException {
-        try (FileOutputStream outputFileStream = new FileOutputStream(fileDir)) {
-            try (ObjectOutputStream objectStream = new ObjectOutputStream(outputFileStream)) {
-                objectStream.writeObject(idsToUUIDs);
-                objectStream.writeObject(plugin.playerChannels);
-                objectStream.writeObject(plugin.playerVolumesMap);
-                objectStream.writeObject(plugin.lockedChannels);
-                objectStream.writeObject(plugin.registrationCodes);
-            }
-        }
+    /**
+     * Queues a save of everything, the write itself happens on a background thread.
+     */
+    public void saveFile() {
+        store.save(copyStoredData());
+    }
+
+    /**
+     * Copies everything that gets saved, so it can be written out without racing the main thread.
+     */
+    private PersistenceStore.StoredData copyStoredData() {
+        PersistenceStore.StoredData data = new PersistenceStore.StoredData();
+        data.links.putAll(idsToUUIDs);
+        data.channels.putAll(plugin.playerChannels);
+        for (Map.Entry<UUID, HashMap<UUID, Integer>> entry : plugin.playerVolumesMap.entrySet()) {
+            data.volumes.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        data.locks.putAll(plugin.lockedChannels);
+        data.registrationCodes.putAll(plugin.registrationCodes);
+        return data;
     }
 
     @Override
@@ -92,14 +148,45 @@ public class AudioForwarder extends ListenerAdapter
         }
     }
 
+    @Override
+    public void onGuildReady(@Nonnull GuildReadyEvent event) {
+        trackProximityChannels(event.getGuild());
+    }
+
+    @Override
+    public void onGuildAvailable(@Nonnull GuildAvailableEvent event) {
+        trackProximityChannels(event.getGuild());
+    }
+
+    /**
+     * Picks up anyone already sitting in one of the guild's proximity channels, when we log in or the guild
+     * comes back after an outage. Voice state events missed in between are made up for by starting over.
+     */
+    private void trackProximityChannels(Guild guild) {
+        proximityChannels.values().removeIf(channelId -> guild.getVoiceChannelById(channelId) != null);
+        for (GuildVoiceState state : guild.getVoiceStates()) {
+            VoiceChannel channel = state.getChannel();
+            if (channel != null && isProximityChannel(channel)) {
+                proximityChannels.put(state.getMember().getId(), channel.getId());
+            }
+        }
+    }
+
     @Override
     public void onGuildVoiceUpdate(@Nonnull GuildVoiceUpdateEvent event) {
         VoiceChannel joinedChannel = event.getChannelJoined();
+        String memberId = event.getEntity().getId();
+        if (event.getChannelLeft() != null) {
+            proximityChannels.remove(memberId, event.getChannelLeft().getId());
+        }
+        if (joinedChannel != null && isProximityChannel(joinedChannel)) {
+            proximityChannels.put(memberId, joinedChannel.getId());
+        }
         if (joinedChannel == null) {
             if (event.getChannelLeft() == null) {
                 return;
             }
-            if (event.getChannelLeft().getName().startsWith("Proximity Voice")) {
+            if (isProximityChannel(event.getChannelLeft())) {
                 Member member = event.getEntity();
                 if (!idsToUUIDs.containsKey(member.getId())) {
                     return;
@@ -109,11 +196,15 @@ public class AudioForwarder extends ListenerAdapter
                     return;
                 }
                 plugin.getServer().broadcastMessage(ChatColor.GRAY + player.getName() + " left audio.");
-                closeGuild(event.getChannelLeft().getGuild());
+                // events from different guilds can come in either order, so by now they may be served elsewhere
+                Guild left = event.getChannelLeft().getGuild();
+                if (left.getId().equals(servingGuilds.get(member.getId()))) {
+                    closeGuild(left);
+                }
             }
             return;
         }
-        if (joinedChannel.getName().startsWith("Proximity Voice")) {
+        if (isProximityChannel(joinedChannel)) {
             Member member = event.getEntity();
             if (!idsToUUIDs.containsKey(member.getId())) {
                 return;
@@ -127,65 +218,313 @@ public class AudioForwarder extends ListenerAdapter
         }
     }
 
-    public void onMinecraftJoin(UUID playerUUID) {
-        if (uuidsToIds.containsKey(playerUUID)) {
-            searchForAndConnectTo(uuidsToIds.get(playerUUID));
-        }
+    public boolean isRegistered(UUID playerUUID) {
+        return uuidsToIds.containsKey(playerUUID);
     }
 
-    public void onMinecraftDisconnect(UUID playerUUID) {
-        if (!uuidsToIds.containsKey(playerUUID)) {
+    public String getDiscordId(UUID playerUUID) {
+        return uuidsToIds.get(playerUUID);
+    }
+
+    public UUID getPlayerUUID(String discordId) {
+        return idsToUUIDs.get(discordId);
+    }
+
+    /**
+     * Starts connecting to the user's proximity channel while the server is still logging them in, so audio is
+     * already flowing by the time they spawn. Called from the async pre-login thread.
+     */
+    public void onMinecraftPreLogin(UUID playerUUID) {
+        String discordUserId = uuidsToIds.get(playerUUID);
+        if (discordUserId == null) {
             return;
         }
-        String discordUserId = uuidsToIds.get(playerUUID);
-        for (Guild guild : plugin.api.getGuilds()) {
-            AudioManager manager = guild.getAudioManager();
-            AudioHandler handler = (AudioHandler) manager.getReceivingHandler();
-            if (handler == null) {
-                continue;
+        if (!keepOpen(discordUserId)) {
+            VoiceChannel channel = proximityChannel(discordUserId);
+            if (channel == null) {
+                return;
             }
-            String handlerId = handler.receiveUserId;
-            if (handlerId.equals(discordUserId)) {
-                closeGuild(guild);
+            connectTo(channel, discordUserId);
+        }
+        // in case the login doesn't go through after all (whitelist, full server, a kick on login), joining
+        // cancels it
+        closeLater(discordUserId, Math.max(reconnectGraceTicks, LOGIN_TIMEOUT_TICKS));
+    }
+
+    public void onMinecraftJoin(UUID playerUUID) {
+        String discordUserId = uuidsToIds.get(playerUUID);
+        if (discordUserId == null) {
+            return;
+        }
+        if (keepOpen(discordUserId)) {
+            // still connected from before they logged off, or from pre-login
+            Player player = plugin.getServer().getPlayer(playerUUID);
+            if (player != null) {
+                plugin.getServer().broadcastMessage(ChatColor.GRAY + player.getName() + " joined audio.");
             }
+            return;
         }
+        searchForAndConnectTo(discordUserId);
     }
 
+    public void onMinecraftDisconnect(UUID playerUUID) {
+        String discordUserId = uuidsToIds.get(playerUUID);
+        if (discordUserId == null) {
+            return;
+        }
+        closeLater(discordUserId, reconnectGraceTicks);
+    }
 
-    public void searchForAndConnectTo(String discordUserId) {
-        for (Guild guild : plugin.api.getGuilds()) {
-            for (VoiceChannel channel : guild.getVoiceChannels()) {
-                if (!channel.getName().startsWith("Proximity Voice")) {
-                    continue;
-                }
-                List<String> memberIdsInChannel = channel.getMembers().stream()
-                        .map(Member::getId).collect(Collectors.toList());
-                if (!memberIdsInChannel.contains(discordUserId)) {
-                    continue;
-                }
-                Player player = plugin.getServer().getPlayer(idsToUUIDs.get(discordUserId));
-                if (player == null) {
+    /**
+     * Closes the connection serving the user after the given number of server ticks, unless {@link #keepOpen}
+     * is called first. Until then their pipeline stays as it is, they just aren't mixed for while they're offline.
+     */
+    private void closeLater(String discordUserId, long delayTicks) {
+        String guildId = servingGuilds.get(discordUserId);
+        if (guildId == null) {
+            return;
+        }
+        if (delayTicks == 0) {
+            closeGuild(guildId);
+            return;
+        }
+        BukkitRunnable close = new BukkitRunnable() {
+            @Override
+            public void run() {
+                // lost the race with keepOpen
+                if (!pendingCloses.remove(discordUserId, this)) {
                     return;
                 }
-                plugin.getServer().broadcastMessage(ChatColor.GRAY + player.getName() + " joined audio.");
-                plugin.getLogger().log(Level.INFO, "Connecting to channel, user id: " + discordUserId);
-                connectTo(channel, discordUserId);
+                String serving = servingGuilds.get(discordUserId);
+                if (serving != null) {
+                    closeGuild(serving);
+                }
             }
+        };
+        BukkitRunnable previous = pendingCloses.put(discordUserId, close);
+        if (previous != null) {
+            previous.cancel();
+        }
+        close.runTaskLater(plugin, delayTicks);
+    }
+
+    /**
+     * Cancels any pending close of the user's connection.
+     *
+     * @return whether a connection is still serving them
+     */
+    private boolean keepOpen(String discordUserId) {
+        BukkitRunnable close = pendingCloses.remove(discordUserId);
+        if (close != null) {
+            close.cancel();
+        }
+        return servingGuilds.containsKey(discordUserId);
+    }
+
+    /**
+     * Handles the connection serving a handler dropping. Where rejoining the channel could work it's reopened
+     * with the same handler, so the user's buffers and mixer carry on where they left off.
+     */
+    void onConnectionLost(AudioHandler handler, ConnectionStatus status) {
+        boolean retry = status == ConnectionStatus.DISCONNECTED_REMOVED_DURING_RECONNECT
+                || status == ConnectionStatus.DISCONNECTED_AUTHENTICATION_FAILURE;
+        VoiceChannel channel = proximityChannel(handler.receiveUserId);
+        if (retry && channel != null && channel.getGuild().getId().equals(handler.guildId)
+                && handler.reconnects++ < MAX_RECONNECTS) {
+            plugin.getLogger().log(Level.INFO, "Voice connection for " + handler.receiveUserId + " dropped (" +
+                    status + "), reconnecting");
+            channel.getGuild().getAudioManager().openAudioConnection(channel);
+            return;
+        }
+        closeGuild(handler.guildId);
+    }
+
+
+    public void searchForAndConnectTo(String discordUserId) {
+        VoiceChannel channel = proximityChannel(discordUserId);
+        if (channel == null) {
+            return;
+        }
+        Player player = plugin.getServer().getPlayer(idsToUUIDs.get(discordUserId));
+        if (player == null) {
+            return;
         }
+        plugin.getServer().broadcastMessage(ChatColor.GRAY + player.getName() + " joined audio.");
+        plugin.getLogger().log(Level.INFO, "Connecting to channel, user id: " + discordUserId);
+        connectTo(channel, discordUserId);
     }
 
     public void closeGuild(Guild guild) {
         AudioManager manager = guild.getAudioManager();
-        AudioHandler handler = (AudioHandler) manager.getReceivingHandler();
-        if (handler != null) {
-            handler.close();
-            String handlerId = handler.receiveUserId;
-            outputQueueMap.remove(handlerId);
-            inputQueueMap.remove(handlerId);
-        }
+        release((AudioHandler) manager.getReceivingHandler());
         manager.closeAudioConnection();
     }
 
+    private void closeGuild(String guildId) {
+        Guild guild = plugin.api.getGuildById(guildId);
+        if (guild != null) {
+            closeGuild(guild);
+        }
+    }
+
+    /**
+     * The proximity channel the user is sitting in, looked up fresh from JDA's cache, or null if they aren't in
+     * one or it's gone.
+     */
+    private VoiceChannel proximityChannel(String discordUserId) {
+        String channelId = proximityChannels.get(discordUserId);
+        return channelId == null ? null : plugin.api.getVoiceChannelById(channelId);
+    }
+
+    /**
+     * Tears down a handler's pipeline and forgets which guild was serving its user.
+     */
+    private void release(AudioHandler handler) {
+        if (handler == null || !handler.close()) {
+            // the guild keeps its last handler after the connection is closed, it may have been released already
+            return;
+        }
+        slots.close(handler.receiveUserId, handler.outputQueue);
+        servingGuilds.remove(handler.receiveUserId, handler.guildId);
+    }
+
+    private static boolean isProximityChannel(VoiceChannel channel) {
+        return channel.getName().startsWith("Proximity Voice");
+    }
+
+    public void shutdown() {
+        metrics.unregister();
+        mixer.shutdown();
+        SessionRecorder recorder = this.recorder;
+        this.recorder = null;
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Couldn't finish writing the capture file", e);
+            }
+        }
+        try {
+            store.close(copyStoredData());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Couldn't save user data! Restoring users won't work.", e);
+        }
+    }
+
+    /**
+     * Works out which speakers need a frame played out this tick and returns how many there are. Packets from
+     * anyone no listener is near are thrown away without being decoded. Only called from the mixer's tick thread.
+     */
+    int prepareDecoding(PositionSnapshot positions) {
+        VoiceSlots.Table table = slots.tick();
+        int count = 0;
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            PacketRing packets = table.packets[slot];
+            if (packets == null) {
+                continue;
+            }
+            JitterBuffer jitter = table.jitterBuffers[slot];
+            if (packets.size() == 0 && !jitter.isPlaying()) {
+                continue;
+            }
+            int speaker = slots.playerOf(slot);
+            if (speaker < 0 || !positions.audible[speaker]) {
+                packets.skipAll();
+                jitter.reset();
+                continue;
+            }
+            if (count == decodeSlots.length) {
+                decodeSlots = Arrays.copyOf(decodeSlots, count * 2);
+            }
+            decodeSlots[count++] = slot;
+        }
+        return count;
+    }
+
+    /**
+     * Moves the packets that arrived since last tick into the speaker's jitter buffer and decodes the one frame
+     * it plays out straight into their input buffer. Runs on a mixer worker; each speaker is only ever handled
+     * by one worker per tick, which keeps their decoder state in order.
+     */
+    void decode(int work) {
+        VoiceSlots.Table table = slots.tick();
+        int slot = decodeSlots[work];
+        PacketRing packets = table.packets[slot];
+        JitterBuffer jitter = table.jitterBuffers[slot];
+        OpusPacket packet;
+        while ((packet = packets.poll()) != null) {
+            jitter.insert(packet, packets.getLastArrival());
+        }
+        short[] decoded = jitter.next();
+        if (decoded == null) {
+            return;
+        }
+        int length = Math.min(decoded.length, MixScratch.FRAME_SAMPLES);
+        VoiceActivityDetector gate = table.gates[slot];
+        if (!gate.accept(decoded, length)) {
+            // too quiet to be worth mixing, and leaving it out lets the listener's connection go quiet too
+            return;
+        }
+        AudioRingBuffer inputQueue = table.inputs[slot];
+        short[] frame = inputQueue.claim();
+        if (frame == null) {
+            return;
+        }
+        // a microphone is mono anyway, so only one channel is kept from here on
+        MixScratch.downmix(decoded, length, frame);
+        // concealed frames have no packet, so they can't be passed through
+        inputQueue.attachPacket(jitter.getLastPacket());
+        inputQueue.stamp(jitter.getLastArrival());
+        inputQueue.level(gate.getLevel());
+        inputQueue.publish();
+    }
+
+    /**
+     * Queues a packet from Discord for its speaker, if they're connected, and adds it to the capture if one is
+     * running. Called from JDA's receive threads, or by the replay tool with the time it was recorded arriving.
+     */
+    void receive(OpusPacket packet, long arrivalNanos) {
+        VoiceSlots.Table table = slots.current();
+        int slot = table.slotOf(packet.getUserId());
+        if (slot < 0) {
+            return;
+        }
+        SessionRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.recordPacket(packet, arrivalNanos);
+        }
+        table.packets[slot].offer(packet, arrivalNanos);
+    }
+
+    /**
+     * Adds a freshly published snapshot to the capture, if one is running. Only called from the main thread.
+     */
+    void recordSnapshot(PositionSnapshot snapshot) {
+        SessionRecorder recorder = this.recorder;
+        if (recorder == null) {
+            return;
+        }
+        VoiceSlots.Table table = slots.current();
+        boolean[] connected = new boolean[snapshot.size()];
+        for (int i = 0; i < connected.length; i++) {
+            connected[i] = table.slotOf(snapshot.snowflakes[i]) >= 0;
+        }
+        recorder.recordSnapshot(snapshot, connected, System.nanoTime());
+    }
+
+    /**
+     * Moves every speaker on to the frame that will be mixed this tick. Only ever called from the mixer's
+     * tick thread, which makes it the single consumer of every input buffer.
+     */
+    void advanceInputs() {
+        for (AudioRingBuffer inputQueue : slots.tick().inputs) {
+            if (inputQueue != null) {
+                inputQueue.trim(INPUT_BACKLOG);
+                inputQueue.next();
+            }
+        }
+    }
+
     private void registerUser(GuildMessageReceivedEvent event, String userName) {
         Player player = plugin.getServer().getPlayer(userName);
         if (player == null) {
@@ -210,7 +549,7 @@ public class AudioForwarder extends ListenerAdapter
                 "Then, join the new `Proximity Voice` voice channel!").queue();
         boolean hasChannel = false;
         for (VoiceChannel channel : event.getGuild().getVoiceChannels()) {
-            if (channel.getName().startsWith("Proximity Voice")) {
+            if (isProximityChannel(channel)) {
                 hasChannel = true;
             }
         }
@@ -221,16 +560,16 @@ public class AudioForwarder extends ListenerAdapter
 
     public void enterAfterRegistered(RegistrationData data) {
         UUID uuid = data.getPlayerUUID();
-        uuidsToIds.put(uuid, data.getDiscordId());
-        idsToUUIDs.put(data.getDiscordId(), uuid);
-        try {
-            saveFile();
-        } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Couldn't save user data! Restoring users won't work.");
-        }
+        link(uuid, data.getDiscordId());
+        saveFile();
         onMinecraftJoin(uuid);
     }
 
+    void link(UUID playerUUID, String discordId) {
+        uuidsToIds.put(playerUUID, discordId);
+        idsToUUIDs.put(discordId, playerUUID);
+    }
+
     public boolean deRegister(UUID playerUUID) {
         if (!uuidsToIds.containsKey(playerUUID)) {
             return false;
@@ -238,12 +577,13 @@ public class AudioForwarder extends ListenerAdapter
         String discordId = uuidsToIds.get(playerUUID);
         uuidsToIds.remove(playerUUID);
         idsToUUIDs.remove(discordId);
-        try {
-            saveFile();
-        } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Couldn't save user data! Restoring users won't work.");
+        saveFile();
+        // no grace period here, and the link is already gone so onMinecraftDisconnect wouldn't find them
+        keepOpen(discordId);
+        String guildId = servingGuilds.get(discordId);
+        if (guildId != null) {
+            closeGuild(guildId);
         }
-        onMinecraftDisconnect(playerUUID);
         return true;
     }
 
@@ -283,12 +623,29 @@ public class AudioForwarder extends ListenerAdapter
      */
     private void connectTo(VoiceChannel channel, String callerId)
     {
-        inputQueueMap.put(callerId, new ConcurrentLinkedQueue<>());
-        outputQueueMap.put(callerId, new ConcurrentLinkedQueue<>());
         Guild guild = channel.getGuild();
         AudioManager audioManager = guild.getAudioManager();
+        AudioHandler current = (AudioHandler) audioManager.getReceivingHandler();
+        if (current != null && current.receiveUserId.equals(callerId) && !current.isClosed()) {
+            // already serving them, just make sure the connection is in their channel
+            audioManager.openAudioConnection(channel);
+            return;
+        }
+        // the connection only serves one user at a time, whoever it was serving before is dropped
+        release(current);
+        // and a user is only served by one connection, so the one in the guild they came from goes
+        String previousId = servingGuilds.get(callerId);
+        Guild previous = previousId == null || previousId.equals(guild.getId()) ? null
+                : plugin.api.getGuildById(previousId);
+        if (previous != null) {
+            AudioHandler serving = (AudioHandler) previous.getAudioManager().getReceivingHandler();
+            if (serving != null && serving.receiveUserId.equals(callerId)) {
+                closeGuild(previous);
+            }
+        }
 
-        AudioHandler handler = new AudioHandler(this, callerId, channel.getGuild());
+        AudioHandler handler = openPipeline(callerId, guild.getId());
+        servingGuilds.put(callerId, guild.getId());
 
         audioManager.setSendingHandler(handler);
         audioManager.setReceivingHandler(handler);
@@ -297,20 +654,46 @@ public class AudioForwarder extends ListenerAdapter
         audioManager.openAudioConnection(channel);
     }
 
+    /**
+     * Gives a user a slot with fresh queues and the handler that feeds and drains them, without touching Discord.
+     */
+    AudioHandler openPipeline(String callerId, String guildId) {
+        int slot = slots.open(callerId, voiceActivityThreshold);
+        return new AudioHandler(this, callerId, slot, guildId);
+    }
+
     public static class AudioHandler implements AudioSendHandler, AudioReceiveHandler, ConnectionListener
     {
         private final AudioForwarder forwarder;
         private final String receiveUserId;
-        public final Guild guild;
-        public final Timer timer;
-        public AudioHandler(AudioForwarder caller, String callerId, Guild guild) {
-            this.guild = guild;
+        final int slot;
+        final AudioRingBuffer outputQueue;
+        // how much of the output buffer JDA should be kept ahead by
+        final OutputPacer pacer = new OutputPacer();
+        // the guild whose connection this handler is attached to
+        public final String guildId;
+        private final UpdateQueue updateQueue;
+        // receive to send latency of what this listener hears, in microseconds
+        final Histogram latency = new Histogram();
+        // big-endian copy of the frame being sent, only touched from JDA's send thread
+        private final byte[] pcm = new byte[MixScratch.FRAME_BYTES];
+        // whether the last frame handed to JDA was an untouched Opus packet rather than PCM
+        private volatile boolean sendingOpus;
+        // frames sent on as Opus packets without being mixed, only written by JDA's send thread
+        volatile long framesPassedThrough;
+        private boolean closed;
+        // times in a row the connection has been reopened after dropping, only touched from JDA's callbacks
+        int reconnects;
+        public AudioHandler(AudioForwarder caller, String callerId, int slot, String guildId) {
+            this.guildId = guildId;
             forwarder = caller;
             receiveUserId = callerId;
+            this.slot = slot;
+            outputQueue = forwarder.slots.current().outputs[slot];
             forwarder.plugin.log.log(Level.INFO, "registered audio");
 
-            timer = new Timer();
-            timer.scheduleAtFixedRate(new UpdateQueue(this), 0L, 20L);
+            updateQueue = new UpdateQueue(this);
+            forwarder.mixer.register(updateQueue);
         }
 
         @Override
@@ -330,7 +713,9 @@ public class AudioForwarder extends ListenerAdapter
                     ConnectionStatus.DISCONNECTED_REMOVED_DURING_RECONNECT,
                     ConnectionStatus.DISCONNECTED_REMOVED_FROM_GUILD);
             if (disconnectedStatuses.contains(status)) {
-                forwarder.closeGuild(guild);
+                forwarder.onConnectionLost(this, status);
+            } else if (status == ConnectionStatus.CONNECTED) {
+                reconnects = 0;
             }
         }
 
@@ -338,29 +723,32 @@ public class AudioForwarder extends ListenerAdapter
         @Override
         public void onUserSpeaking(@NotNull User user, boolean speaking) { }
 
-        public void close() {
-            this.timer.cancel();
+        /**
+         * @return false if the handler had already been closed
+         */
+        public synchronized boolean close() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            forwarder.mixer.deregister(updateQueue);
+            return true;
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
         }
 
         @Override
-        public boolean canReceiveUser()
+        public boolean canReceiveEncoded()
         {
-            // we can always attempt to receive user audio, it will only be used if we have space for it
+            // we decode packets ourselves, and only if someone is close enough to hear them
             return true;
         }
 
         @Override
-        public void handleUserAudio(UserAudio userAudio) {
-            String userId = userAudio.getUser().getId();
-            Queue<byte[]> inputQueue = forwarder.inputQueueMap.get(userId);
-            if (inputQueue == null) {
-                return;
-            }
-            if (inputQueue.size() < 10) {
-                inputQueue.add(userAudio.getAudioData(1));
-            } if (inputQueue.size() > 2) {
-                inputQueue.remove();
-            }
+        public void handleEncodedAudio(@NotNull OpusPacket packet) {
+            forwarder.receive(packet, System.nanoTime());
         }
 
         /* Send Handling */
@@ -368,163 +756,201 @@ public class AudioForwarder extends ListenerAdapter
         @Override
         public boolean canProvide()
         {
-            // If we have something in our buffer we can provide it to the send system
-            Queue<byte[]> outputQueue = forwarder.outputQueueMap.get(receiveUserId);
-            if (outputQueue == null) {
-                return false;
-            }
-            return !outputQueue.isEmpty();
+            // If we have something in our buffer we can provide it to the send system, silence never gets queued
+            // so JDA stops sending packets while nobody nearby is talking. The pacer may hold the start of a talk
+            // spurt back until enough is buffered to not run dry halfway through
+            return pacer.ready(outputQueue);
         }
 
         @Override
         public ByteBuffer provide20MsAudio()
         {
-            // use what we have in our buffer to send audio as PCM
-            byte[] data = forwarder.outputQueueMap.get(receiveUserId).poll();
-            return data == null ? null : ByteBuffer.wrap(data); // Wrap this in a java.nio.ByteBuffer
+            // use what we have in our buffer to send audio, the slot is reused once JDA asks again
+            short[] data = outputQueue.next();
+            if (data == null) {
+                sendingOpus = false;
+                return null;
+            }
+            OpusPacket packet = outputQueue.currentPacket();
+            sendingOpus = packet != null;
+            long received = outputQueue.currentStamp();
+            if (received != 0) {
+                latency.record((System.nanoTime() - received) / 1000);
+            }
+            if (sendingOpus) {
+                framesPassedThrough++;
+                return ByteBuffer.wrap(packet.getOpusAudio());
+            }
+            // JDA is done with the last frame by the time it asks for the next one
+            for (int i = 0; i < MixScratch.FRAME_SAMPLES; i++) {
+                pcm[i * 2] = (byte) (data[i] >> 8);
+                pcm[i * 2 + 1] = (byte) data[i];
+            }
+            return ByteBuffer.wrap(pcm); // Wrap this in a java.nio.ByteBuffer
         }
 
         @Override
         public boolean isOpus()
         {
-            // since we send audio that is received from discord we don't have opus but PCM
-            return false;
+            // JDA asks straight after provide20MsAudio, a lone speaker heard at full volume is passed through as Opus
+            return sendingOpus;
         }
     }
 
-    public static class AudioAndMultiplier {
-        private final byte[] audioData;
-        private double[] multiplier;
-
-        public AudioAndMultiplier (byte[] data, double[] multiplier) {
-            this.audioData = data;
-            this.multiplier = multiplier;
-        }
-
-        public byte[] getData() {
-            return audioData;
-        }
-
-        public double[] getMultiplier() {
-            return multiplier;
-        }
-
-        public int length() {
-            return audioData.length;
-        }
-
-        public void setTotalSamples(int totalSamples) {
-            double[] newMultiplier = new double[2];
-            newMultiplier[0] = multiplier[0] / totalSamples;
-            newMultiplier[1] = multiplier[1] / totalSamples;
-            this.multiplier = newMultiplier;
-        }
-    }
-
-    public static class UpdateQueue extends TimerTask {
+    public static class UpdateQueue {
         AudioHandler handler;
-        PositionalDiscord plugin;
         final AudioForwarder forwarder;
         String outputUserId;
-        UUID outputUserUUID;
-        Queue<byte[]> outputQueue;
-        HashMap<String, byte[]> lastKnownBytesMap = new HashMap<>();
+        final int slot;
+        final AudioRingBuffer outputQueue;
+        final OutputPacer pacer;
+        final SourceSelector sources;
 
         public UpdateQueue(AudioHandler caller) {
             handler = caller;
-            plugin = handler.forwarder.plugin;
             forwarder = handler.forwarder;
             outputUserId = handler.receiveUserId;
-            outputQueue = forwarder.outputQueueMap.get(outputUserId);
-            outputUserUUID = forwarder.idsToUUIDs.get(outputUserId);
-        }
-
-        public void run() {
-            if (outputQueue == null) {
-                outputQueue = forwarder.outputQueueMap.get(outputUserId);
-                return;
+            slot = handler.slot;
+            outputQueue = handler.outputQueue;
+            pacer = handler.pacer;
+            sources = new SourceSelector(forwarder.sourceBudget, forwarder.sourceThreshold);
+        }
+
+        /**
+         * Roughly how much work mixing this listener's next frame will be, in frames summed, so the tick can be
+         * shared out evenly between the workers.
+         */
+        int estimateCost(PositionSnapshot snapshot) {
+            int listener = listenerIndex();
+            if (listener < 0) {
+                return 1;
             }
-            if (outputQueue.size() > 10) {
-                return;
+            int sources = snapshot.neighbourEnd(listener) - snapshot.neighbourStart(listener);
+            if (forwarder.sourceBudget > 0) {
+                sources = Math.min(sources, forwarder.sourceBudget);
             }
-            Player player = plugin.getServer().getPlayer(outputUserUUID);
-            if (player == null) {
+            // plus clearing the accumulator and writing the output
+            return 2 + sources;
+        }
+
+        /**
+         * Mixes one frame for this listener. Only reads the snapshot, its gain table and the speakers' current
+         * frames, so it never touches the Bukkit API.
+         */
+        public void mix(PositionSnapshot snapshot, GainTable gains, ChannelBuses buses) {
+            if (!pacer.wantsFrame(outputQueue)) {
                 return;
             }
-            ArrayList<Player> nearbyPlayers = plugin.nearbyPlayers.get(player);
-            if (nearbyPlayers == null) {
+            int listener = listenerIndex();
+            if (listener < 0) {
                 return;
             }
-            ArrayList<AudioAndMultiplier> combining = new ArrayList<>();
-            for (Player nearbyPlayer : nearbyPlayers) {
-                String discordId = forwarder.uuidsToIds.get(nearbyPlayer.getUniqueId());
-                if (discordId == null) {
-                    continue;
+            VoiceSlots slots = forwarder.slots;
+            MixScratch scratch = MixScratch.get();
+            scratch.begin();
+            long oldest = 0;
+            int bus = buses.busFor(listener);
+            if (bus >= 0) {
+                AudioRingBuffer ownQueue = slots.tick().inputs[slot];
+                short[] ownFrame = ownQueue == null ? null : ownQueue.current();
+                // only worth starting from the bus if someone other than us is talking on it
+                if (buses.getContributors(bus) > (ownFrame == null ? 0 : 1)) {
+                    scratch.setBase(buses.getBus(bus), ownFrame);
+                    oldest = buses.getOldestStamp(bus);
                 }
-                Queue<byte[]> otherUserQueue = forwarder.inputQueueMap.get(discordId);
-                if (otherUserQueue == null || otherUserQueue.isEmpty()) {
-                    continue;
-                }
-                byte[] data = otherUserQueue.peek();
-                if (data == null) {
+            }
+            for (int edge = snapshot.neighbourStart(listener); edge < snapshot.neighbourEnd(listener); edge++) {
+                if (bus >= 0 && snapshot.sharedChannel[edge]) {
+                    // comes from the bus, any correction is added once the voices have been picked
                     continue;
                 }
-                byte[] lastKnownBytes = lastKnownBytesMap.get(discordId);
-                if (lastKnownBytes != null) {
-                    if (lastKnownBytes == data) {
-                        try {
-                            otherUserQueue.remove();
-                        } catch (NoSuchElementException ignored) {}
-                        data = otherUserQueue.peek();
-                        if (data == null) {
-                            continue;
-                        }
+                addSource(scratch, slots.input(snapshot.neighbour(edge)), gains.left(edge), gains.right(edge));
+            }
+            if (sources.isEnabled()) {
+                sources.select(scratch);
+            }
+            if (bus >= 0) {
+                // /volume overrides on the bus, never scored or dropped since leaving one out would quietly
+                // put that channel mate back to the bus volume
+                for (int edge = snapshot.neighbourStart(listener); edge < snapshot.neighbourEnd(listener); edge++) {
+                    if (!snapshot.sharedChannel[edge] || gains.left(edge) == ChannelBuses.BUS_GAIN) {
+                        continue;
                     }
+                    float correction = gains.left(edge) - ChannelBuses.BUS_GAIN;
+                    addSource(scratch, slots.input(snapshot.neighbour(edge)), correction, correction);
                 }
-                double[] multiplication = plugin.getAngularVolume(player, nearbyPlayer);
-                lastKnownBytesMap.put(discordId, data);
-                combining.add(new AudioAndMultiplier(data, multiplication));
-            }
-            if (!combining.isEmpty()) {
-                byte[] combinedData = new byte[3840];
-                int maxLength = combining.stream().mapToInt(AudioAndMultiplier::length).max().getAsInt();
-                int sample;
-                short toAdd;
-                double multiplier;
-                AudioAndMultiplier audioInfo;
-                for (int i=0; i<maxLength; i+=2) {
-                    sample = 0;
-                    for (Iterator<AudioAndMultiplier> iterator = combining.iterator(); iterator.hasNext(); ) {
-                        audioInfo = iterator.next();
-                        byte[] audio = audioInfo.getData();
-                        if (i < audio.length - 1) {
-                            short buf1 = audio[i];
-                            short buf2 = audio[i + 1];
-                            buf1 = (short) ((buf1 & 0xff) << 8);
-                            buf2 = (short) (buf2 & 0xff);
-                            short currentShort = (short) (buf1 | buf2);
-                            if (i % 4 == 0) {
-                                multiplier = audioInfo.getMultiplier()[0];
-                            } else {
-                                multiplier = audioInfo.getMultiplier()[1];
-                            }
-                            sample += (int) (currentShort * multiplier);
-                        } else {
-                            iterator.remove();
-                        }
-                    }
-                    if (sample > Short.MAX_VALUE) {
-                        toAdd = Short.MAX_VALUE;
-                    } else if (sample < Short.MIN_VALUE) {
-                        toAdd = Short.MIN_VALUE;
-                    } else {
-                        toAdd = (short) sample;
+            }
+            for (int source = 0; source < scratch.getSourceCount(); source++) {
+                oldest = older(oldest, scratch.getQueue(source).currentStamp());
+            }
+            // a bus correction only ever comes with a base, so a lone source is always heard on its own
+            if (forwarder.passthroughTolerance > 0 && scratch.getSourceCount() == 1 && !scratch.hasBase()
+                    && isFullVolume(scratch.getLeftGain(0), scratch.getRightGain(0),
+                    forwarder.passthroughTolerance)) {
+                OpusPacket packet = scratch.getQueue(0).currentPacket();
+                if (packet != null) {
+                    // nothing to mix, send their packet on instead of decoding and encoding it again
+                    if (outputQueue.claim() == null) {
+                        return;
                     }
-                    combinedData[i] = (byte) (toAdd >> 8);
-                    combinedData[i + 1] = (byte) (toAdd);
+                    outputQueue.attachPacket(packet);
+                    outputQueue.stamp(oldest);
+                    outputQueue.publish();
+                    pacer.published();
+                    return;
                 }
-                outputQueue.add(combinedData);
             }
+            if (scratch.hasAudio()) {
+                short[] combinedData = outputQueue.claim();
+                if (combinedData == null) {
+                    return;
+                }
+                scratch.mixInto(combinedData);
+                outputQueue.stamp(oldest);
+                outputQueue.publish();
+                pacer.published();
+            }
+        }
+
+        private static void addSource(MixScratch scratch, AudioRingBuffer queue, float left, float right) {
+            if (queue == null) {
+                return;
+            }
+            // the tick has already moved every speaker on to this frame, so all listeners share it
+            short[] data = queue.current();
+            if (data != null) {
+                scratch.addSource(data, left, right, queue);
+            }
+        }
+
+        /**
+         * Whether a source at these gains is mixed at unity in both ears, so forwarding their own packets
+         * untouched sounds the same as mixing them.
+         */
+        static boolean isFullVolume(float left, float right, double tolerance) {
+            return Math.abs(left - 1) <= tolerance && Math.abs(right - 1) <= tolerance;
+        }
+
+        /**
+         * This listener's index in the tick's snapshot, or -1 if they aren't in it or their slot isn't theirs
+         * in the tick's table (they connected after it was taken, or left and someone else has it now).
+         */
+        private int listenerIndex() {
+            VoiceSlots.Table table = forwarder.slots.tick();
+            if (slot >= table.capacity() || table.outputs[slot] != outputQueue) {
+                return -1;
+            }
+            return forwarder.slots.playerOf(slot);
+        }
+
+        /**
+         * The earlier of two receive times, ignoring unknown (0) ones.
+         */
+        static long older(long stamp, long other) {
+            if (stamp == 0) {
+                return other;
+            }
+            return other == 0 ? stamp : Math.min(stamp, other);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,300 @@
+package me.tgwaffles.positionaldiscord;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+
+/**
+ * Reads the counters the audio pipeline already keeps, for JMX and /pdstats.
+ * <p>
+ * Nothing here is recorded by the audio threads themselves: every buffer counts its own drops from its
+ * single writing thread and the latency and tick time histograms are striped, so this only adds them up
+ * when someone asks.
+ */
+public class AudioMetrics implements AudioMetricsMXBean {
+    private static final String NAME = "me.tgwaffles.positionaldiscord:type=AudioMetrics";
+
+    private final AudioForwarder forwarder;
+    private ObjectName registeredName;
+
+    public AudioMetrics(AudioForwarder forwarder) {
+        this.forwarder = forwarder;
+    }
+
+    public void register() {
+        try {
+            ObjectName name = new ObjectName(NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                // left behind by a reload
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            forwarder.plugin.getLogger().log(Level.WARNING, "Couldn't register audio metrics with JMX", e);
+        }
+    }
+
+    public void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            forwarder.plugin.getLogger().log(Level.WARNING, "Couldn't unregister audio metrics from JMX", e);
+        }
+        registeredName = null;
+    }
+
+    /**
+     * Latency counts summed over every listener, see {@link Histogram#addTo}.
+     */
+    public long[] getLatencyCounts() {
+        long[] counts = Histogram.newCounts();
+        for (AudioForwarder.UpdateQueue mixer : forwarder.mixer.getMixers()) {
+            mixer.handler.latency.addTo(counts);
+        }
+        return counts;
+    }
+
+    @Override
+    public int getListenerCount() {
+        return forwarder.mixer.getMixerCount();
+    }
+
+    @Override
+    public int getSpeakerCount() {
+        return forwarder.slots.current().size();
+    }
+
+    @Override
+    public int getMixerThreads() {
+        return forwarder.mixer.getWorkerCount();
+    }
+
+    @Override
+    public long getTickCount() {
+        return forwarder.mixer.getTickCount();
+    }
+
+    @Override
+    public long getTickOverruns() {
+        return forwarder.mixer.getOverrunCount();
+    }
+
+    @Override
+    public double getLastTickMillis() {
+        return forwarder.mixer.getLastTickNanos() / 1e6;
+    }
+
+    @Override
+    public double getMaxTickMillis() {
+        return forwarder.mixer.getMaxTickNanos() / 1e6;
+    }
+
+    @Override
+    public double getTickMillisP50() {
+        return forwarder.mixer.getTickTimes().percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getTickMillisP99() {
+        return forwarder.mixer.getTickTimes().percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getTickUtilisation() {
+        return forwarder.mixer.getTickUtilisation();
+    }
+
+    @Override
+    public double getMixerCoresBusy() {
+        return forwarder.mixer.getCoresBusy();
+    }
+
+    @Override
+    public long getMixesSkipped() {
+        return forwarder.mixer.getMixesSkipped();
+    }
+
+    @Override
+    public int getOcclusionPairs() {
+        OcclusionEngine occlusion = forwarder.plugin.occlusion;
+        return occlusion == null ? 0 : occlusion.getPairCount();
+    }
+
+    @Override
+    public int getOcclusionChunks() {
+        OcclusionEngine occlusion = forwarder.plugin.occlusion;
+        return occlusion == null ? 0 : occlusion.getChunkCount();
+    }
+
+    @Override
+    public long getOcclusionRaysCast() {
+        OcclusionEngine occlusion = forwarder.plugin.occlusion;
+        return occlusion == null ? 0 : occlusion.getRaysCast();
+    }
+
+    @Override
+    public int getInputQueueDepth() {
+        int depth = 0;
+        for (PacketRing packets : VoiceSlots.collect(forwarder.slots.current().packets)) {
+            depth += packets.size();
+        }
+        for (JitterBuffer jitter : VoiceSlots.collect(forwarder.slots.current().jitterBuffers)) {
+            depth += jitter.getBuffered();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getOutputQueueDepth() {
+        int depth = 0;
+        for (AudioRingBuffer outputQueue : VoiceSlots.collect(forwarder.slots.current().outputs)) {
+            depth += outputQueue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getPacketsOverflowed() {
+        long total = 0;
+        for (PacketRing packets : VoiceSlots.collect(forwarder.slots.current().packets)) {
+            total += packets.getOverflows();
+        }
+        return total;
+    }
+
+    @Override
+    public long getPacketsSkipped() {
+        long total = 0;
+        for (PacketRing packets : VoiceSlots.collect(forwarder.slots.current().packets)) {
+            total += packets.getSkipped();
+        }
+        return total;
+    }
+
+    @Override
+    public long getPacketsLate() {
+        long total = 0;
+        for (JitterBuffer jitter : VoiceSlots.collect(forwarder.slots.current().jitterBuffers)) {
+            total += jitter.getLate();
+        }
+        return total;
+    }
+
+    @Override
+    public long getFramesConcealed() {
+        long total = 0;
+        for (JitterBuffer jitter : VoiceSlots.collect(forwarder.slots.current().jitterBuffers)) {
+            total += jitter.getConcealed();
+        }
+        return total;
+    }
+
+    @Override
+    public long getFramesSilent() {
+        long total = 0;
+        for (VoiceActivityDetector gate : VoiceSlots.collect(forwarder.slots.current().gates)) {
+            total += gate.getSilentFrames();
+        }
+        return total;
+    }
+
+    @Override
+    public long getDecodesFailed() {
+        return forwarder.mixer.getDecodesFailed();
+    }
+
+    @Override
+    public long getInputFramesDropped() {
+        long total = 0;
+        for (AudioRingBuffer inputQueue : VoiceSlots.collect(forwarder.slots.current().inputs)) {
+            total += inputQueue.getDropped() + inputQueue.getOverflows();
+        }
+        for (JitterBuffer jitter : VoiceSlots.collect(forwarder.slots.current().jitterBuffers)) {
+            total += jitter.getShrunk();
+        }
+        return total;
+    }
+
+    @Override
+    public long getSourcesCulled() {
+        long total = 0;
+        for (AudioForwarder.UpdateQueue mixer : forwarder.mixer.getMixers()) {
+            total += mixer.sources.getCulled();
+        }
+        return total;
+    }
+
+    @Override
+    public long getOutputFramesOverflowed() {
+        long total = 0;
+        for (AudioRingBuffer outputQueue : VoiceSlots.collect(forwarder.slots.current().outputs)) {
+            total += outputQueue.getOverflows();
+        }
+        return total;
+    }
+
+    @Override
+    public long getOutputUnderruns() {
+        long total = 0;
+        for (AudioForwarder.UpdateQueue mixer : forwarder.mixer.getMixers()) {
+            total += mixer.pacer.getUnderruns();
+        }
+        return total;
+    }
+
+    @Override
+    public long getOutputFramesShed() {
+        long total = 0;
+        for (AudioForwarder.UpdateQueue mixer : forwarder.mixer.getMixers()) {
+            total += mixer.pacer.getShed();
+        }
+        return total;
+    }
+
+    @Override
+    public long getOutputFramesPassedThrough() {
+        long total = 0;
+        for (AudioForwarder.UpdateQueue mixer : forwarder.mixer.getMixers()) {
+            total += mixer.handler.framesPassedThrough;
+        }
+        return total;
+    }
+
+    /**
+     * The output depth the listeners are aiming for, on average.
+     */
+    @Override
+    public double getOutputTargetFrames() {
+        long total = 0;
+        int count = 0;
+        for (AudioForwarder.UpdateQueue mixer : forwarder.mixer.getMixers()) {
+            total += mixer.pacer.getTarget();
+            count++;
+        }
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    @Override
+    public double getLatencyMillisP50() {
+        return Histogram.percentile(getLatencyCounts(), 50) / 1e3;
+    }
+
+    @Override
+    public double getLatencyMillisP99() {
+        return Histogram.percentile(getLatencyCounts(), 99) / 1e3;
+    }
+
+    @Override
+    public double getLatencyMillisMax() {
+        long max = 0;
+        for (AudioForwarder.UpdateQueue mixer : forwarder.mixer.getMixers()) {
+            max = Math.max(max, mixer.handler.latency.getMax());
+        }
+        return max / 1e3;
+    }
+}
@@ -0,0 +1,73 @@
+package me.tgwaffles.positionaldiscord;
+
+/**
+ * What {@link AudioMetrics} exposes over JMX. Times are in milliseconds, counts are totals across the
+ * connections that are currently open.
+ */
+public interface AudioMetricsMXBean {
+    int getListenerCount();
+
+    int getSpeakerCount();
+
+    int getMixerThreads();
+
+    long getTickCount();
+
+    long getTickOverruns();
+
+    double getLastTickMillis();
+
+    double getMaxTickMillis();
+
+    double getTickMillisP50();
+
+    double getTickMillisP99();
+
+    double getTickUtilisation();
+
+    double getMixerCoresBusy();
+
+    long getMixesSkipped();
+
+    int getOcclusionPairs();
+
+    int getOcclusionChunks();
+
+    long getOcclusionRaysCast();
+
+    int getInputQueueDepth();
+
+    int getOutputQueueDepth();
+
+    long getPacketsOverflowed();
+
+    long getPacketsSkipped();
+
+    long getPacketsLate();
+
+    long getFramesConcealed();
+
+    long getFramesSilent();
+
+    long getDecodesFailed();
+
+    long getInputFramesDropped();
+
+    long getSourcesCulled();
+
+    long getOutputFramesOverflowed();
+
+    long getOutputUnderruns();
+
+    long getOutputFramesShed();
+
+    long getOutputFramesPassedThrough();
+
+    double getOutputTargetFrames();
+
+    double getLatencyMillisP50();
+
+    double getLatencyMillisP99();
+
+    double getLatencyMillisMax();
+}
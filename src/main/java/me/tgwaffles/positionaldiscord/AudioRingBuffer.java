@@ -0,0 +1,196 @@
+package me.tgwaffles.positionaldiscord;
+
+import net.dv8tion.jda.api.audio.OpusPacket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer queue of 20ms PCM frames.
+ * <p>
+ * Speakers' input buffers hold mono frames, listeners' output buffers interleaved stereo ones, see
+ * {@link MixScratch#MONO_SAMPLES} and {@link MixScratch#FRAME_SAMPLES}.
+ * <p>
+ * Every slot is allocated up front and reused, so frames are copied (or mixed) straight into the
+ * slot instead of allocating a new array. The consumer keeps hold of the frame returned by
+ * {@link #next()} until its next call, which is when the slot is handed back to the producer.
+ * A slot can also carry the Opus packet its frame came from, so it can be sent on without re-encoding.
+ */
+public class AudioRingBuffer {
+    private final short[][] slots;
+    private final OpusPacket[] packets;
+    // System.nanoTime() the oldest audio in each frame was received at, 0 if unknown
+    private final long[] stamps;
+    // how loud the speaker was around each frame, see VoiceActivityDetector#getLevel
+    private final int[] levels;
+    private final int mask;
+    // head is only written by the consumer, tail only by the producer
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private boolean holding;
+
+    // each counter has a single writing thread, readers only need a recent value
+    private volatile long overflows;
+    private volatile long underflows;
+    private volatile long dropped;
+
+    /**
+     * @param frameSamples
+     *        Samples in each frame, counting both channels of a stereo frame
+     */
+    public AudioRingBuffer(int capacity, int frameSamples) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new short[size][frameSamples];
+        packets = new OpusPacket[size];
+        stamps = new long[size];
+        levels = new int[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Frames queued, including the one the consumer is currently holding.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /* Producer side */
+
+    public boolean offer(short[] data) {
+        short[] slot = claim();
+        if (slot == null) {
+            return false;
+        }
+        System.arraycopy(data, 0, slot, 0, Math.min(data.length, slot.length));
+        publish();
+        return true;
+    }
+
+    /**
+     * Returns the next free slot to write a frame into, or null (counting an overflow) if the buffer is full.
+     * The frame only becomes visible to the consumer once {@link #publish()} is called.
+     */
+    public short[] claim() {
+        long currentTail = tail.get();
+        if (currentTail - head.get() >= slots.length) {
+            overflows++;
+            return null;
+        }
+        int slot = (int) currentTail & mask;
+        packets[slot] = null;
+        stamps[slot] = 0;
+        levels[slot] = 0;
+        return slots[slot];
+    }
+
+    /**
+     * Attaches the Opus packet the frame being written came from, must be called between claim and publish.
+     */
+    public void attachPacket(OpusPacket packet) {
+        packets[(int) tail.get() & mask] = packet;
+    }
+
+    /**
+     * Records when the audio in the frame being written was received, must be called between claim and publish.
+     */
+    public void stamp(long receivedNanos) {
+        stamps[(int) tail.get() & mask] = receivedNanos;
+    }
+
+    /**
+     * Records how loud the speaker of the frame being written has been, must be called between claim and publish.
+     */
+    public void level(int level) {
+        levels[(int) tail.get() & mask] = level;
+    }
+
+    public void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    /* Consumer side */
+
+    /**
+     * Releases the frame handed out by the previous call and returns the next one,
+     * or null (counting an underflow) if nothing is queued.
+     */
+    public short[] next() {
+        long currentHead = head.get();
+        if (holding) {
+            currentHead++;
+            head.lazySet(currentHead);
+            holding = false;
+        }
+        if (currentHead == tail.get()) {
+            underflows++;
+            return null;
+        }
+        holding = true;
+        return slots[(int) currentHead & mask];
+    }
+
+    /**
+     * The frame returned by the last call to {@link #next()}, if the consumer is still holding it.
+     */
+    public short[] current() {
+        return holding ? slots[(int) head.get() & mask] : null;
+    }
+
+    /**
+     * The Opus packet attached to the frame the consumer is holding, or null if it doesn't have one.
+     */
+    public OpusPacket currentPacket() {
+        return holding ? packets[(int) head.get() & mask] : null;
+    }
+
+    /**
+     * When the audio in the frame the consumer is holding was received, or 0 if it isn't holding one or
+     * it wasn't stamped.
+     */
+    public long currentStamp() {
+        return holding ? stamps[(int) head.get() & mask] : 0;
+    }
+
+    /**
+     * The level recorded for the frame the consumer is holding, or 0 if it isn't holding one or none was.
+     */
+    public int currentLevel() {
+        return holding ? levels[(int) head.get() & mask] : 0;
+    }
+
+    /**
+     * Frames the consumer hasn't taken yet.
+     */
+    public int readable() {
+        return size() - (holding ? 1 : 0);
+    }
+
+    /**
+     * Throws away the oldest unread frames until at most maxBacklog are left.
+     */
+    public void trim(int maxBacklog) {
+        int excess = readable() - maxBacklog;
+        if (excess <= 0) {
+            return;
+        }
+        long currentHead = head.get() + (holding ? 1 : 0) + excess;
+        holding = false;
+        head.lazySet(currentHead);
+        dropped += excess;
+    }
+
+    public long getOverflows() {
+        return overflows;
+    }
+
+    public long getUnderflows() {
+        return underflows;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,101 @@
+package me.tgwaffles.positionaldiscord;
+
+import java.util.Arrays;
+
+/**
+ * Shared mono mix of every large /radio channel, summed once per tick.
+ * <p>
+ * Every member of a channel hears the others at the same flat gain, so instead of each member summing
+ * everyone else they start from the channel's bus and take their own voice back out ("mix-minus").
+ * Anyone with a /volume override for a channel mate gets the difference mixed in on top.
+ * Only the mixer's tick thread updates the buses, before any mixer runs.
+ */
+public class ChannelBuses {
+    // the gain every channel mate is heard at without a volume override, unity like a proximity speaker up close
+    public static final float BUS_GAIN = 1f;
+
+    private final int threshold;
+    private int[] busOf = new int[64];
+    private int[][] buses = new int[4][MixScratch.MONO_SAMPLES];
+    private int[] contributors = new int[4];
+    private long[] oldestStamps = new long[4];
+    private int busCount;
+
+    /**
+     * @param threshold
+     *        Smallest channel that gets a bus, below it summing the other members directly is cheaper
+     */
+    public ChannelBuses(int threshold) {
+        this.threshold = Math.max(2, threshold);
+    }
+
+    /**
+     * Sums the current frame of every member of each large channel.
+     */
+    public void update(PositionSnapshot positions, AudioForwarder forwarder) {
+        int size = positions.size();
+        if (busOf.length < size) {
+            busOf = new int[Math.max(size, busOf.length * 2)];
+        }
+        Arrays.fill(busOf, 0, size, -1);
+        busCount = 0;
+        int[] members = positions.channelMembers;
+        for (int run = 0; run < members.length; ) {
+            int runEnd = positions.channelEnd[members[run]];
+            if (runEnd - run >= threshold) {
+                int bus = nextBus();
+                int[] accumulator = buses[bus];
+                Arrays.fill(accumulator, 0);
+                for (int m = run; m < runEnd; m++) {
+                    int member = members[m];
+                    busOf[member] = bus;
+                    AudioRingBuffer inputQueue = forwarder.slots.input(member);
+                    short[] frame = inputQueue == null ? null : inputQueue.current();
+                    if (frame != null) {
+                        MixScratch.accumulate(accumulator, frame, BUS_GAIN);
+                        contributors[bus]++;
+                        oldestStamps[bus] = AudioForwarder.UpdateQueue.older(oldestStamps[bus],
+                                inputQueue.currentStamp());
+                    }
+                }
+            }
+            run = runEnd;
+        }
+    }
+
+    /**
+     * @return the bus the player should start their mix from, or -1 if their channel doesn't have one
+     */
+    public int busFor(int player) {
+        return player < busOf.length ? busOf[player] : -1;
+    }
+
+    public int[] getBus(int bus) {
+        return buses[bus];
+    }
+
+    public int getContributors(int bus) {
+        return contributors[bus];
+    }
+
+    /**
+     * When the oldest audio in the bus was received, 0 if unknown.
+     */
+    public long getOldestStamp(int bus) {
+        return oldestStamps[bus];
+    }
+
+    private int nextBus() {
+        if (busCount == buses.length) {
+            buses = Arrays.copyOf(buses, busCount * 2);
+            contributors = Arrays.copyOf(contributors, busCount * 2);
+            oldestStamps = Arrays.copyOf(oldestStamps, busCount * 2);
+            for (int i = busCount; i < buses.length; i++) {
+                buses[i] = new int[MixScratch.MONO_SAMPLES];
+            }
+        }
+        contributors[busCount] = 0;
+        oldestStamps[busCount] = 0;
+        return busCount++;
+    }
+}
@@ -0,0 +1,54 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.bukkit.entity.Player;
+
+import java.util.*;
+
+/**
+ * Online members of every /radio channel, kept up to date as players join, quit and change channel
+ * so finding a channel's members doesn't mean walking every stored channel assignment.
+ * Only used from the main thread.
+ */
+public class ChannelIndex {
+    private final HashMap<Integer, ArrayList<Player>> members = new HashMap<>();
+
+    public void add(Player player, int channel) {
+        ArrayList<Player> channelMembers = members.computeIfAbsent(channel, k -> new ArrayList<>());
+        if (!channelMembers.contains(player)) {
+            channelMembers.add(player);
+        }
+    }
+
+    public void remove(Player player, int channel) {
+        ArrayList<Player> channelMembers = members.get(channel);
+        if (channelMembers == null) {
+            return;
+        }
+        channelMembers.remove(player);
+        if (channelMembers.isEmpty()) {
+            members.remove(channel);
+        }
+    }
+
+    public List<Player> getMembers(int channel) {
+        ArrayList<Player> channelMembers = members.get(channel);
+        return channelMembers == null ? Collections.emptyList() : Collections.unmodifiableList(channelMembers);
+    }
+
+    public Set<Map.Entry<Integer, ArrayList<Player>>> entries() {
+        return Collections.unmodifiableSet(members.entrySet());
+    }
+
+    /**
+     * Rebuilds the index from the stored channel assignments, for when players are already online.
+     */
+    public void rebuild(Map<UUID, Integer> playerChannels, Collection<? extends Player> online) {
+        members.clear();
+        for (Player player : online) {
+            Integer channel = playerChannels.get(player.getUniqueId());
+            if (channel != null) {
+                add(player, channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package me.tgwaffles.positionaldiscord;
+
+import java.util.Arrays;
+
+/**
+ * Left/right gain for every neighbour edge of a {@link PositionSnapshot}.
+ * <p>
+ * Positions only change once per server tick, so the trig and square roots are done here when a new
+ * snapshot shows up instead of for every audio frame. The distance between two players is the same
+ * both ways round, so it is only worked out for the first edge of each pair and reused for the other.
+ * Only the mixer's tick thread updates the table, and it never does so while mixers are running.
+ */
+public class GainTable {
+    private PositionSnapshot snapshot = PositionSnapshot.EMPTY;
+    private float[] left = new float[64];
+    private float[] right = new float[64];
+    private double[] distances = new double[64];
+    private double[] distanceMultipliers = new double[64];
+    private final double[] output = new double[2];
+
+    public PositionSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public float left(int edge) {
+        return left[edge];
+    }
+
+    public float right(int edge) {
+        return right[edge];
+    }
+
+    /**
+     * Recomputes the table if the given snapshot is newer than the one it was last built from.
+     */
+    public void update(PositionSnapshot positions) {
+        if (positions == snapshot) {
+            return;
+        }
+        int edges = positions.neighbours.length;
+        if (edges > left.length) {
+            int newLength = Math.max(edges, left.length * 2);
+            left = new float[newLength];
+            right = new float[newLength];
+            distances = new double[newLength];
+            distanceMultipliers = new double[newLength];
+        }
+        int[] neighbours = positions.neighbours;
+        for (int listener = 0; listener < positions.size(); listener++) {
+            for (int edge = positions.neighbourStart(listener); edge < positions.neighbourEnd(listener); edge++) {
+                int speaker = neighbours[edge];
+                if (positions.sharedChannel[edge]) {
+                    left[edge] = right[edge] = (float) (positions.volumes[edge] * ChannelBuses.BUS_GAIN);
+                    continue;
+                }
+                double dx = positions.xs[speaker] - positions.xs[listener];
+                double dy = positions.ys[speaker] - positions.ys[listener];
+                double dz = positions.zs[speaker] - positions.zs[listener];
+                // the other direction was already done if the speaker came first
+                int reverse = speaker < listener ? findEdge(positions, speaker, listener) : -1;
+                if (reverse >= 0) {
+                    distances[edge] = distances[reverse];
+                    distanceMultipliers[edge] = distanceMultipliers[reverse];
+                } else {
+                    distances[edge] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                    distanceMultipliers[edge] = PositionalDiscord.getDistanceMultiplier(distances[edge],
+                            positions.factor);
+                }
+                PositionalDiscord.getAngularVolume(dx, dz, distances[edge], positions.lookXs[listener],
+                        positions.lookZs[listener], distanceMultipliers[edge] * positions.volumes[edge], output);
+                left[edge] = (float) output[0];
+                right[edge] = (float) output[1];
+            }
+        }
+        snapshot = positions;
+    }
+
+    private static int findEdge(PositionSnapshot positions, int from, int to) {
+        // each player's neighbours are stored in ascending order
+        int found = Arrays.binarySearch(positions.neighbours, positions.neighbourStart(from),
+                positions.neighbourEnd(from), to);
+        return found < 0 ? -1 : found;
+    }
+}
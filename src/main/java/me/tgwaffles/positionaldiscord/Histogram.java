@@ -0,0 +1,98 @@
+package me.tgwaffles.positionaldiscord;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of non-negative values (microseconds, usually), four buckets per power of two,
+ * so percentiles are within about 25%.
+ * <p>
+ * Buckets are {@link LongAdder}s, so any number of threads can record into one without contending,
+ * and reading it never stops anyone recording.
+ */
+public class Histogram {
+    private static final int BUCKETS = 248;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets[bucketOf(value)].increment();
+        total.increment();
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double percentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        addTo(counts);
+        return percentile(counts, percentile);
+    }
+
+    /**
+     * Adds this histogram's counts to the given array, to get percentiles over several histograms at once.
+     */
+    public void addTo(long[] counts) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += buckets[i].sum();
+        }
+    }
+
+    public static long[] newCounts() {
+        return new long[BUCKETS];
+    }
+
+    /**
+     * @return the upper edge of the bucket the percentile falls in, or 0 if nothing was recorded
+     */
+    public static double percentile(long[] counts, double percentile) {
+        long count = 0;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return lowerBound(i + 1) - 1;
+            }
+        }
+        return lowerBound(BUCKETS) - 1;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < 4) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 2)) & 3;
+        return (exponent - 1) * 4 + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = bucket / 4 + 1;
+        return (4L + bucket % 4) << (exponent - 2);
+    }
+}
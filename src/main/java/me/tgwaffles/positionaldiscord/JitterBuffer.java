@@ -0,0 +1,256 @@
+package me.tgwaffles.positionaldiscord;
+
+import net.dv8tion.jda.api.audio.OpusPacket;
+
+/**
+ * Reorders one speaker's packets by RTP sequence number and plays out exactly one frame per mixer tick.
+ * <p>
+ * Playback only starts once enough packets are buffered to ride out the arrival jitter measured so far
+ * (RFC 3550 style), and the buffer is shrunk again when it has grown well past that. A packet that never
+ * turns up while later ones have is concealed by repeating the last frame, fading out if several are lost
+ * in a row. Packets arriving after their turn are dropped. Once the buffer runs dry (the speaker stopped
+ * talking) playback stops until it has filled up again.
+ * Only ever used by the worker decoding that speaker, or the tick thread between ticks.
+ */
+public class JitterBuffer {
+    private static final int WINDOW = 32;
+    private static final int MAX_DEPTH = 8;
+    // 20ms of 48kHz audio in RTP timestamp units
+    private static final int TIMESTAMP_STEP = 960;
+    private static final double FRAME_MILLIS = 20;
+
+    private final OpusPacket[] window = new OpusPacket[WINDOW];
+    private final long[] arrivals = new long[WINDOW];
+    private final short[] concealment = new short[MixScratch.FRAME_SAMPLES];
+    private int buffered;
+    private boolean playing;
+    private int nextSequence;
+    private int firstSequence;
+
+    private double jitterMillis;
+    private double lastTransitMillis = Double.NaN;
+    // adapts once packets start arriving, 40ms is what the old fixed backlog allowed
+    private int targetDepth = 2;
+
+    private short[] lastDecoded;
+    private int lostInRow;
+    private OpusPacket lastPacket;
+    private long takenArrival;
+    private long lastArrival;
+
+    private long late;
+    private long concealed;
+    private long shrunk;
+
+    /**
+     * Stores a packet that has just come off the speaker's queue.
+     *
+     * @param arrivalNanos
+     *        When the packet was received, to measure jitter against its RTP timestamp
+     */
+    public void insert(OpusPacket packet, long arrivalNanos) {
+        int sequence = packet.getSequence();
+        updateJitter(packet.getTimestamp(), arrivalNanos);
+        if (playing) {
+            int ahead = sequenceDelta(sequence, nextSequence);
+            if (ahead < 0) {
+                late++;
+                return;
+            }
+            if (ahead >= WINDOW) {
+                // far ahead of where we are, most likely the stream restarted, so start again from this packet
+                clear();
+            }
+        }
+        if (!playing) {
+            if (buffered > 0 && Math.abs(sequenceDelta(sequence, firstSequence)) >= WINDOW) {
+                clear();
+            }
+            if (buffered == 0 || sequenceDelta(sequence, firstSequence) < 0) {
+                firstSequence = sequence;
+            }
+        }
+        int slot = sequence & (WINDOW - 1);
+        OpusPacket existing = window[slot];
+        if (existing != null && existing.getSequence() == sequence) {
+            // a duplicate
+            return;
+        }
+        if (existing == null) {
+            buffered++;
+        }
+        window[slot] = packet;
+        arrivals[slot] = arrivalNanos;
+        if (!playing && buffered >= targetDepth) {
+            playing = true;
+            nextSequence = firstSequence;
+        }
+    }
+
+    /**
+     * Plays out the next frame.
+     *
+     * @return the decoded (or concealed) samples for this tick, or null if nothing should be played
+     */
+    public short[] next() {
+        lastPacket = null;
+        lastArrival = 0;
+        if (!playing) {
+            return null;
+        }
+        if (buffered > targetDepth + 2) {
+            // jitter has settled since we buffered this much, skip a frame to bring the latency back down. It
+            // still goes through the decoder, which would otherwise click where its state jumps ahead a frame
+            OpusPacket skipped = takePacket();
+            if (skipped != null) {
+                decode(skipped);
+            }
+            shrunk++;
+        }
+        if (buffered > 0) {
+            OpusPacket packet = takePacket();
+            if (packet == null) {
+                return conceal();
+            }
+            short[] decoded = decode(packet);
+            if (decoded == null) {
+                return conceal();
+            }
+            lastDecoded = decoded;
+            lostInRow = 0;
+            lastPacket = packet;
+            lastArrival = takenArrival;
+            return decoded;
+        }
+        // run dry, wait until we've buffered enough to start again
+        playing = false;
+        lastDecoded = null;
+        return null;
+    }
+
+    /**
+     * @return the packet's samples, or null if the decoder refused it
+     */
+    private static short[] decode(OpusPacket packet) {
+        try {
+            return packet.decode();
+        } catch (IllegalStateException e) {
+            // treated like a lost packet
+            return null;
+        }
+    }
+
+    /**
+     * The packet the samples returned by the last call to {@link #next()} were decoded from,
+     * or null if they were concealed.
+     */
+    public OpusPacket getLastPacket() {
+        return lastPacket;
+    }
+
+    /**
+     * When the packet returned by {@link #getLastPacket()} was received, or 0 if the samples were concealed.
+     */
+    public long getLastArrival() {
+        return lastArrival;
+    }
+
+    /**
+     * Whether there are frames waiting to be played out even if no new packets arrive.
+     */
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    /**
+     * Throws everything away, for when nobody can hear the speaker. By the time they can again their packets
+     * have been arriving unmeasured, so jitter is measured afresh from the next one.
+     */
+    public void reset() {
+        clear();
+        lastTransitMillis = Double.NaN;
+    }
+
+    /**
+     * Throws away everything buffered and starts again from the next packet.
+     */
+    private void clear() {
+        for (int i = 0; i < WINDOW; i++) {
+            window[i] = null;
+        }
+        buffered = 0;
+        playing = false;
+        lastDecoded = null;
+        lastPacket = null;
+        lostInRow = 0;
+    }
+
+    private OpusPacket takePacket() {
+        int slot = nextSequence & (WINDOW - 1);
+        OpusPacket packet = window[slot];
+        nextSequence = (nextSequence + 1) & 0xFFFF;
+        if (packet == null || packet.getSequence() != ((nextSequence - 1) & 0xFFFF)) {
+            return null;
+        }
+        window[slot] = null;
+        takenArrival = arrivals[slot];
+        buffered--;
+        return packet;
+    }
+
+    private short[] conceal() {
+        concealed++;
+        lostInRow++;
+        if (lastDecoded == null || lostInRow > 4) {
+            return null;
+        }
+        // halve the volume for every frame lost in a row
+        int shift = lostInRow;
+        int length = Math.min(lastDecoded.length, concealment.length);
+        for (int i = 0; i < length; i++) {
+            concealment[i] = (short) (lastDecoded[i] >> shift);
+        }
+        return concealment;
+    }
+
+    private void updateJitter(int timestamp, long arrivalNanos) {
+        double transit = arrivalNanos / 1_000_000.0 - (timestamp & 0xFFFFFFFFL) / (TIMESTAMP_STEP / FRAME_MILLIS);
+        if (!Double.isNaN(lastTransitMillis)) {
+            double difference = Math.abs(transit - lastTransitMillis);
+            // a jump of over a second is the speaker pausing (or the timestamp wrapping), not jitter
+            if (difference < 1000) {
+                jitterMillis += (difference - jitterMillis) / 16;
+                targetDepth = Math.max(1, Math.min(MAX_DEPTH, 1 + (int) Math.ceil(2 * jitterMillis / FRAME_MILLIS)));
+            }
+        }
+        lastTransitMillis = transit;
+    }
+
+    private static int sequenceDelta(int sequence, int from) {
+        return (short) (sequence - from);
+    }
+
+    public int getBuffered() {
+        return buffered;
+    }
+
+    public int getTargetDepth() {
+        return targetDepth;
+    }
+
+    public double getJitterMillis() {
+        return jitterMillis;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    public long getConcealed() {
+        return concealed;
+    }
+
+    public long getShrunk() {
+        return shrunk;
+    }
+}
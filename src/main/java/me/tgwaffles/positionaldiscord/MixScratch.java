@@ -0,0 +1,205 @@
+package me.tgwaffles.positionaldiscord;
+
+import java.util.Arrays;
+
+/**
+ * Per-worker buffers used by the mixer, so a steady-state mix doesn't allocate anything.
+ * <p>
+ * Speakers are kept mono all the way through. Each source is panned as it is summed into the listener's separate
+ * left and right accumulators, and the two are only interleaved into stereo when the output frame is written.
+ */
+public class MixScratch {
+    // what JDA sends, big-endian 16 bit stereo
+    public static final int FRAME_BYTES = 3840;
+    // interleaved left/right 16 bit samples in one 20ms frame
+    public static final int FRAME_SAMPLES = FRAME_BYTES / 2;
+    // samples in one 20ms frame of a single channel, the shape every speaker's audio is kept in
+    public static final int MONO_SAMPLES = FRAME_SAMPLES / 2;
+
+    private static final ThreadLocal<MixScratch> SCRATCH = ThreadLocal.withInitial(MixScratch::new);
+
+    final int[] left = new int[MONO_SAMPLES];
+    final int[] right = new int[MONO_SAMPLES];
+    private short[][] sources = new short[8][];
+    private float[] leftGains = new float[8];
+    private float[] rightGains = new float[8];
+    private AudioRingBuffer[] queues = new AudioRingBuffer[8];
+    private int sourceCount;
+    private int[] base;
+    private short[] baseExclude;
+
+    public static MixScratch get() {
+        return SCRATCH.get();
+    }
+
+    public void begin() {
+        sourceCount = 0;
+        base = null;
+        baseExclude = null;
+    }
+
+    public int getSourceCount() {
+        return sourceCount;
+    }
+
+    /**
+     * Starts the mix from an already summed channel bus instead of silence, taking the listener's own
+     * frame (if it went into the bus) back out.
+     */
+    public void setBase(int[] bus, short[] exclude) {
+        base = bus;
+        baseExclude = exclude;
+    }
+
+    public boolean hasBase() {
+        return base != null;
+    }
+
+    public boolean hasAudio() {
+        return sourceCount > 0 || base != null;
+    }
+
+    public void addSource(short[] data, double leftGain, double rightGain) {
+        addSource(data, leftGain, rightGain, null);
+    }
+
+    /**
+     * Adds a source, remembering which speaker's input buffer it came from so it can be picked out again
+     * by a {@link SourceSelector}.
+     */
+    public void addSource(short[] data, double leftGain, double rightGain, AudioRingBuffer queue) {
+        if (sourceCount == sources.length) {
+            // only grows until the largest crowd seen so far fits
+            int newLength = sources.length * 2;
+            sources = Arrays.copyOf(sources, newLength);
+            leftGains = Arrays.copyOf(leftGains, newLength);
+            rightGains = Arrays.copyOf(rightGains, newLength);
+            queues = Arrays.copyOf(queues, newLength);
+        }
+        sources[sourceCount] = data;
+        leftGains[sourceCount] = (float) leftGain;
+        rightGains[sourceCount] = (float) rightGain;
+        queues[sourceCount] = queue;
+        sourceCount++;
+    }
+
+    public float getLeftGain(int source) {
+        return leftGains[source];
+    }
+
+    public float getRightGain(int source) {
+        return rightGains[source];
+    }
+
+    public AudioRingBuffer getQueue(int source) {
+        return queues[source];
+    }
+
+    /**
+     * Drops every source that isn't marked to be kept, keeping the rest in order.
+     */
+    public void retain(boolean[] keep) {
+        int kept = 0;
+        for (int source = 0; source < sourceCount; source++) {
+            if (keep[source]) {
+                sources[kept] = sources[source];
+                leftGains[kept] = leftGains[source];
+                rightGains[kept] = rightGains[source];
+                queues[kept] = queues[source];
+                kept++;
+            }
+        }
+        for (int source = kept; source < sourceCount; source++) {
+            sources[source] = null;
+            queues[source] = null;
+        }
+        sourceCount = kept;
+    }
+
+    /**
+     * Sums every added source into the given interleaved stereo frame.
+     */
+    public void mixInto(short[] output) {
+        int[] left = this.left;
+        int[] right = this.right;
+        if (base != null) {
+            // the bus is mono at the same gain on both sides, so only take our own voice out of it once
+            System.arraycopy(base, 0, left, 0, MONO_SAMPLES);
+            if (baseExclude != null) {
+                subtract(left, baseExclude, ChannelBuses.BUS_GAIN);
+            }
+            System.arraycopy(left, 0, right, 0, MONO_SAMPLES);
+            base = null;
+            baseExclude = null;
+        } else {
+            Arrays.fill(left, 0);
+            Arrays.fill(right, 0);
+        }
+        for (int source = 0; source < sourceCount; source++) {
+            pan(left, right, sources[source], leftGains[source], rightGains[source]);
+            // don't keep the source frame reachable until the next mix
+            sources[source] = null;
+            queues[source] = null;
+        }
+        int samples = Math.min(MONO_SAMPLES, output.length / 2);
+        for (int sample = 0, i = 0; sample < samples; sample++, i += 2) {
+            output[i] = clamp(left[sample]);
+            output[i + 1] = clamp(right[sample]);
+        }
+        sourceCount = 0;
+    }
+
+    private static short clamp(int value) {
+        if (value > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (value < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) value;
+    }
+
+    /**
+     * Adds a mono frame to a left and a right accumulator at their own gains.
+     */
+    public static void pan(int[] left, int[] right, short[] audio, float leftGain, float rightGain) {
+        int length = Math.min(audio.length, left.length);
+        for (int i = 0; i < length; i++) {
+            int sample = audio[i];
+            left[i] += (int) (sample * leftGain);
+            right[i] += (int) (sample * rightGain);
+        }
+    }
+
+    /**
+     * Adds a mono frame to a mono accumulator at the given gain.
+     */
+    public static void accumulate(int[] acc, short[] audio, float gain) {
+        int length = Math.min(audio.length, acc.length);
+        for (int i = 0; i < length; i++) {
+            acc[i] += (int) (audio[i] * gain);
+        }
+    }
+
+    /**
+     * Exactly undoes {@link #accumulate} with the same frame and gain.
+     */
+    public static void subtract(int[] acc, short[] audio, float gain) {
+        int length = Math.min(audio.length, acc.length);
+        for (int i = 0; i < length; i++) {
+            acc[i] -= (int) (audio[i] * gain);
+        }
+    }
+
+    /**
+     * Averages the two channels of an interleaved stereo frame into a mono one.
+     *
+     * @param samples
+     *        Interleaved samples to read from the stereo frame
+     */
+    public static void downmix(short[] stereo, int samples, short[] mono) {
+        int length = Math.min(samples / 2, mono.length);
+        for (int i = 0, j = 0; i < length; i++, j += 2) {
+            mono[i] = (short) ((stereo[j] + stereo[j + 1]) >> 1);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package me.tgwaffles.positionaldiscord;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+
+/**
+ * Drives every listener's mixer from one 20ms tick, instead of each handler owning its own timer thread.
+ * The tick's work is cut into chunks of about the same cost which a small fixed pool of workers take
+ * between them, and mixing that hasn't started by the deadline is left for the next tick.
+ */
+public class MixerEngine {
+    public static final long TICK_MILLIS = 20L;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    // enough chunks per worker that one running long can be made up for by the others
+    private static final int CHUNKS_PER_WORKER = 4;
+    // how much the utilisation averages move towards each tick, about a second's worth
+    private static final double AVERAGE_WEIGHT = 1.0 / 50;
+
+    private final PositionalDiscord plugin;
+    private final AudioForwarder forwarder;
+    private final List<AudioForwarder.UpdateQueue> mixers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final long deadlineNanos;
+
+    private final GainTable gainTable = new GainTable();
+    private final ChannelBuses channelBuses;
+    // only touched by the tick thread, and read by workers while it waits for them
+    private Object[] activeMixers = new Object[0];
+    private PositionSnapshot tickPositions = PositionSnapshot.EMPTY;
+    private final IntConsumer mixTask = this::mixOne;
+    private final IntConsumer decodeTask = this::decodeOne;
+    // the estimated cost of each active mixer, and where each chunk of them ends
+    private int[] mixCosts = new int[0];
+    private int[] chunkEnds = new int[0];
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private final AtomicLong busyNanos = new AtomicLong();
+    // what the workers are running in the current stage, set by the tick thread before handing it out, and
+    // reused from one stage to the next so a tick doesn't allocate
+    private IntConsumer stageTask;
+    private int stageChunks;
+    private long stageDeadline;
+    private final AtomicInteger stageSkipped = new AtomicInteger();
+    private final AtomicInteger workersRunning = new AtomicInteger();
+    private volatile Thread waitingThread;
+    private final Runnable workerTask = this::runStage;
+
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private volatile long lastTickNanos;
+    private volatile long maxTickNanos;
+    private final AtomicLong mixesSkipped = new AtomicLong();
+    private final AtomicLong decodesFailed = new AtomicLong();
+    // averages of the share of the tick used, and of how many cores were kept busy, only the tick thread writes
+    private volatile double tickUtilisation;
+    private volatile double coresBusy;
+    // in microseconds
+    private final Histogram tickTimes = new Histogram();
+
+    public MixerEngine(AudioForwarder forwarder, int threads) {
+        this.forwarder = forwarder;
+        this.plugin = forwarder.plugin;
+        if (threads <= 0) {
+            // leave the rest of the cores to the server itself
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        }
+        workerCount = threads;
+        // JDA asks for the next frame 20ms after the last, leave it some slack to pick up what was mixed
+        deadlineNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Math.min(TICK_MILLIS,
+                plugin.getConfig().getInt("mixDeadlineMillis", 15))));
+        channelBuses = new ChannelBuses(plugin.getConfig().getInt("mixMinusThreshold", 4));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("PositionalDiscord Mixer Tick"));
+        // a stage never queues more than one task per worker, and an array backed queue doesn't allocate for them
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workerCount), new NamedThreadFactory("PositionalDiscord Mixer Worker"));
+    }
+
+    public void start() {
+        scheduler.scheduleAtFixedRate(this::tick, 0L, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs one tick straight away on the calling thread, for driving the mixer by hand instead of calling
+     * {@link #start()}, like the replay tool does.
+     */
+    void runTick() {
+        tick();
+    }
+
+    public void register(AudioForwarder.UpdateQueue mixer) {
+        mixers.add(mixer);
+    }
+
+    public void deregister(AudioForwarder.UpdateQueue mixer) {
+        mixers.remove(mixer);
+    }
+
+    private void tick() {
+        long start = System.nanoTime();
+        try {
+            // every listener mixes against the same snapshot, even if the main thread publishes mid-tick
+            PositionSnapshot positions = plugin.positionSnapshot;
+            tickPositions = positions;
+            forwarder.slots.beginTick(positions);
+            busyNanos.set(0);
+            runPartitioned(forwarder.prepareDecoding(positions), decodeTask, null, Long.MAX_VALUE);
+            forwarder.advanceInputs();
+            gainTable.update(positions);
+            channelBuses.update(positions, forwarder);
+            activeMixers = mixers.toArray();
+            if (mixCosts.length < activeMixers.length) {
+                mixCosts = new int[Math.max(activeMixers.length, mixCosts.length * 2)];
+            }
+            for (int i = 0; i < activeMixers.length; i++) {
+                mixCosts[i] = ((AudioForwarder.UpdateQueue) activeMixers[i]).estimateCost(positions);
+            }
+            int skipped = runPartitioned(activeMixers.length, mixTask, mixCosts, start + deadlineNanos);
+            if (skipped > 0) {
+                mixesSkipped.addAndGet(skipped);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Throwable t) {
+            // an exception escaping here would silently cancel the schedule
+            plugin.getLogger().log(Level.SEVERE, "Mixer tick failed", t);
+        }
+        long elapsed = System.nanoTime() - start;
+        lastTickNanos = elapsed;
+        tickUtilisation += ((double) elapsed / TICK_NANOS - tickUtilisation) * AVERAGE_WEIGHT;
+        coresBusy += ((double) busyNanos.get() / TICK_NANOS - coresBusy) * AVERAGE_WEIGHT;
+        tickTimes.record(elapsed / 1000);
+        if (elapsed > maxTickNanos) {
+            maxTickNanos = elapsed;
+        }
+        ticks.incrementAndGet();
+        if (elapsed > TICK_NANOS) {
+            long overrunCount = overruns.incrementAndGet();
+            if (overrunCount == 1 || overrunCount % 500 == 0) {
+                plugin.getLogger().log(Level.WARNING, "Audio mixer tick took " +
+                        TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms (" + overrunCount + " overruns so far)");
+            }
+        }
+    }
+
+    /**
+     * Runs the task for every index below count, spread over the workers, and waits for all of them.
+     * The indexes are cut into runs of about the same total cost, which the workers take one at a time until
+     * there are none left. Runs not started by the deadline are skipped.
+     *
+     * @param costs
+     *        Estimated cost of each index, or null if they all cost the same
+     * @return how many indexes were skipped because the deadline passed
+     */
+    private int runPartitioned(int count, IntConsumer task, int[] costs, long deadline)
+            throws InterruptedException {
+        if (count == 0) {
+            return 0;
+        }
+        int workersUsed = Math.min(workerCount, count);
+        int chunks = partition(count, costs, workersUsed * CHUNKS_PER_WORKER);
+        nextChunk.set(0);
+        if (workersUsed == 1) {
+            return runChunks(task, chunks, deadline);
+        }
+        stageTask = task;
+        stageChunks = chunks;
+        stageDeadline = deadline;
+        stageSkipped.set(0);
+        waitingThread = Thread.currentThread();
+        workersRunning.set(workersUsed);
+        for (int worker = 0; worker < workersUsed; worker++) {
+            workers.execute(workerTask);
+        }
+        // even once the deadline has passed, whatever is already running has to finish before the next stage
+        // touches the state it reads
+        while (workersRunning.get() > 0) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return stageSkipped.get();
+    }
+
+    /**
+     * One worker's share of the current stage.
+     */
+    private void runStage() {
+        try {
+            stageSkipped.addAndGet(runChunks(stageTask, stageChunks, stageDeadline));
+        } finally {
+            if (workersRunning.decrementAndGet() == 0) {
+                LockSupport.unpark(waitingThread);
+            }
+        }
+    }
+
+    /**
+     * Takes chunks until there are none left, returning how many indexes were skipped for being too late.
+     */
+    private int runChunks(IntConsumer task, int chunks, long deadline) {
+        long start = System.nanoTime();
+        int skipped = 0;
+        int chunk;
+        while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+            int from = chunk == 0 ? 0 : chunkEnds[chunk - 1];
+            if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+                skipped += chunkEnds[chunk] - from;
+                continue;
+            }
+            for (int i = from; i < chunkEnds[chunk]; i++) {
+                task.accept(i);
+            }
+        }
+        busyNanos.addAndGet(System.nanoTime() - start);
+        return skipped;
+    }
+
+    /**
+     * Cuts the indexes into at most the given number of contiguous chunks of about the same total cost.
+     *
+     * @return how many chunks there are
+     */
+    private int partition(int count, int[] costs, int maxChunks) {
+        if (chunkEnds.length < maxChunks) {
+            chunkEnds = new int[maxChunks];
+        }
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += costs == null ? 1 : costs[i];
+        }
+        int chunks = 0;
+        long done = 0;
+        long chunkTarget = Math.max(1, (total + maxChunks - 1) / maxChunks);
+        long nextEnd = chunkTarget;
+        for (int i = 0; i < count; i++) {
+            done += costs == null ? 1 : costs[i];
+            if (done >= nextEnd && chunks < maxChunks - 1) {
+                chunkEnds[chunks++] = i + 1;
+                // a listener costing several chunks' worth still only gets the one
+                nextEnd = done + chunkTarget;
+            }
+        }
+        if (chunks == 0 || chunkEnds[chunks - 1] != count) {
+            chunkEnds[chunks++] = count;
+        }
+        return chunks;
+    }
+
+    private void decodeOne(int work) {
+        try {
+            forwarder.decode(work);
+        } catch (RuntimeException e) {
+            // a bad packet only costs that speaker this frame, the rest of the tick carries on
+            long failures = decodesFailed.incrementAndGet();
+            if (failures == 1 || failures % 500 == 0) {
+                plugin.getLogger().log(Level.WARNING, "Decoding a speaker's audio failed (" + failures +
+                        " times so far)", e);
+            }
+        }
+    }
+
+    private void mixOne(int index) {
+        AudioForwarder.UpdateQueue mixer = (AudioForwarder.UpdateQueue) activeMixers[index];
+        try {
+            mixer.mix(tickPositions, gainTable, channelBuses);
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Mixer for " + mixer.outputUserId + " failed", e);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        mixers.clear();
+    }
+
+    public List<AudioForwarder.UpdateQueue> getMixers() {
+        return Collections.unmodifiableList(mixers);
+    }
+
+    public int getMixerCount() {
+        return mixers.size();
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public long getTickCount() {
+        return ticks.get();
+    }
+
+    public long getOverrunCount() {
+        return overruns.get();
+    }
+
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    public long getMaxTickNanos() {
+        return maxTickNanos;
+    }
+
+    public long getMixesSkipped() {
+        return mixesSkipped.get();
+    }
+
+    public long getDecodesFailed() {
+        return decodesFailed.get();
+    }
+
+    /**
+     * Recent average of how much of the 20ms tick was taken up, 1 meaning all of it.
+     */
+    public double getTickUtilisation() {
+        return tickUtilisation;
+    }
+
+    /**
+     * Recent average of how many cores' worth of time the tick kept busy, the tick thread's own waiting
+     * not included.
+     */
+    public double getCoresBusy() {
+        return coresBusy;
+    }
+
+    public Histogram getTickTimes() {
+        return tickTimes;
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + " #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Muffles players heard through walls and floors.
+ * <p>
+ * Every server tick {@link #apply} goes over each pair of players close enough for it to matter. For a pair with
+ * no result yet, or an out of date one, it takes {@link ChunkSnapshot}s of the chunks between them and hands the
+ * ray from one's eyes to the other's to a background thread, which counts the solid blocks in the way. Results
+ * are cached per pair and only worked out again once either player has moved more than {@link #MOVE_THRESHOLD}
+ * blocks or a block has changed in a chunk the ray crosses; until then the last result is used, so the main
+ * thread never waits on a ray. Chunk snapshots are cached the same way and only taken again after a change.
+ * <p>
+ * Everything but the ray march itself happens on the main thread. Off unless a range is configured, in which
+ * case nothing is registered and no threads are started.
+ */
+public class OcclusionEngine implements Listener {
+    // blocks either player can move before their pair's ray is cast again
+    static final double MOVE_THRESHOLD = 1;
+    // however many blocks are in the way, a speaker is never quieter than this
+    static final float MIN_FACTOR = 0.05f;
+    private static final double EYE_HEIGHT = 1.62;
+    // fresh chunk snapshots taken per server tick at most, pairs that need more wait for the next one
+    private static final int SNAPSHOTS_PER_TICK = 8;
+    // pairs and chunks nobody has needed for this many server ticks are let go
+    private static final int IDLE_TICKS = 200;
+
+    private final double range;
+    private final float perBlock;
+    private final ExecutorService workers;
+
+    // only touched on the main thread
+    private final Map<World, Map<Long, CachedChunk>> chunks = new HashMap<>();
+    // open addressed on both snowflakes, the lower one first, so looking a pair up for every edge doesn't box
+    private long[] pairFirsts = new long[64];
+    private long[] pairSeconds = new long[64];
+    private Pair[] pairValues = new Pair[64];
+    // bumped for every block change, so changes can be ordered against when snapshots were taken
+    private long clock;
+    private long tick;
+
+    private final AtomicLong raysCast = new AtomicLong();
+    private volatile int pairCount;
+    private volatile int chunkCount;
+
+    /**
+     * @param range
+     *        Distance in blocks beyond which players aren't occluded, 0 turns occlusion off
+     * @param perBlock
+     *        How much of a speaker's volume makes it through each solid block
+     */
+    public OcclusionEngine(double range, float perBlock, int threads) {
+        this.range = range;
+        this.perBlock = Math.max(0, Math.min(1, perBlock));
+        workers = isEnabled() ? Executors.newFixedThreadPool(Math.max(1, threads),
+                new MixerEngine.NamedThreadFactory("PositionalDiscord Occlusion")) : null;
+    }
+
+    public boolean isEnabled() {
+        return range > 0 && perBlock < 1;
+    }
+
+    /**
+     * Scales the volume of every edge of a freshly captured snapshot by how muffled the speaker is, and starts
+     * working out any pair that's out of date. Must be called on the main thread, before the snapshot is published.
+     *
+     * @param index
+     *        The spatial index the snapshot was captured from, for the players' worlds
+     * @param connections
+     *        Who has a voice connection, only pairs with someone listening are looked at
+     */
+    public void apply(PositionSnapshot positions, SpatialIndex index, VoiceSlots.Table connections) {
+        if (!isEnabled()) {
+            return;
+        }
+        tick++;
+        int budget = SNAPSHOTS_PER_TICK;
+        double rangeSquared = range * range;
+        for (int listener = 0; listener < positions.size(); listener++) {
+            if (connections.slotOf(positions.snowflakes[listener]) < 0) {
+                continue;
+            }
+            for (int edge = positions.neighbourStart(listener); edge < positions.neighbourEnd(listener); edge++) {
+                int speaker = positions.neighbours[edge];
+                // radio channels are heard through anything
+                if (positions.sharedChannel[edge] || positions.worlds[speaker] != positions.worlds[listener]) {
+                    continue;
+                }
+                double dx = positions.xs[speaker] - positions.xs[listener];
+                double dy = positions.ys[speaker] - positions.ys[listener];
+                double dz = positions.zs[speaker] - positions.zs[listener];
+                if (dx * dx + dy * dy + dz * dz > rangeSquared) {
+                    continue;
+                }
+                // the ray is the same both ways round, so a pair is always stored with the lower snowflake first
+                boolean listenerFirst = positions.snowflakes[listener] < positions.snowflakes[speaker];
+                int a = listenerFirst ? listener : speaker;
+                int b = listenerFirst ? speaker : listener;
+                Pair pair = pair(positions.snowflakes[a], positions.snowflakes[b]);
+                if (pair.seen != tick) {
+                    pair.seen = tick;
+                    World world = index.getWorld(listener);
+                    if (!pair.pending && isStale(pair, world, positions, a, b)) {
+                        budget = cast(pair, world, positions, a, b, budget);
+                    }
+                }
+                positions.volumes[edge] *= pair.factor;
+            }
+        }
+        if (tick % IDLE_TICKS == 0) {
+            forgetIdle();
+        }
+    }
+
+    private Pair pair(long first, long second) {
+        int mask = pairValues.length - 1;
+        for (int slot = mix(first, second) & mask; pairValues[slot] != null; slot = (slot + 1) & mask) {
+            if (pairFirsts[slot] == first && pairSeconds[slot] == second) {
+                return pairValues[slot];
+            }
+        }
+        if ((pairCount + 1) * 2 > pairValues.length) {
+            rehashPairs(pairValues.length * 2);
+        }
+        Pair pair = new Pair();
+        insertPair(first, second, pair);
+        pairCount++;
+        return pair;
+    }
+
+    private void insertPair(long first, long second, Pair pair) {
+        int mask = pairValues.length - 1;
+        int slot = mix(first, second) & mask;
+        while (pairValues[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        pairFirsts[slot] = first;
+        pairSeconds[slot] = second;
+        pairValues[slot] = pair;
+    }
+
+    /**
+     * Moves every pair that isn't idle into tables of the given length, the rest are let go.
+     */
+    private void rehashPairs(int newLength) {
+        long[] firsts = pairFirsts;
+        long[] seconds = pairSeconds;
+        Pair[] values = pairValues;
+        pairFirsts = new long[newLength];
+        pairSeconds = new long[newLength];
+        pairValues = new Pair[newLength];
+        int count = 0;
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null && tick - values[slot].seen <= IDLE_TICKS) {
+                insertPair(firsts[slot], seconds[slot], values[slot]);
+                count++;
+            }
+        }
+        pairCount = count;
+    }
+
+    private static int mix(long first, long second) {
+        long key = (first * 0x9E3779B97F4A7C15L + second) * 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private boolean isStale(Pair pair, World world, PositionSnapshot positions, int a, int b) {
+        if (pair.chunks == null || pair.world != world
+                || moved(pair.ax, pair.ay, pair.az, positions, a) || moved(pair.bx, pair.by, pair.bz, positions, b)) {
+            return true;
+        }
+        for (CachedChunk chunk : pair.chunks) {
+            if (chunk.changedAt > pair.castAt) {
+                return true;
+            }
+            chunk.used = tick;
+        }
+        return false;
+    }
+
+    private static boolean moved(double x, double y, double z, PositionSnapshot positions, int player) {
+        double dx = positions.xs[player] - x;
+        double dy = positions.ys[player] - y;
+        double dz = positions.zs[player] - z;
+        return dx * dx + dy * dy + dz * dz > MOVE_THRESHOLD * MOVE_THRESHOLD;
+    }
+
+    /**
+     * Snapshots the chunks the pair's ray crosses and queues it, unless that would take more snapshots than are
+     * left this tick.
+     *
+     * @return the snapshots left this tick
+     */
+    private int cast(Pair pair, World world, PositionSnapshot positions, int a, int b, int budget) {
+        double ax = positions.xs[a];
+        double ay = positions.ys[a] + EYE_HEIGHT;
+        double az = positions.zs[a];
+        double bx = positions.xs[b];
+        double by = positions.ys[b] + EYE_HEIGHT;
+        double bz = positions.zs[b];
+        long[] keys = chunksCrossed(ax, ay, az, bx, by, bz);
+        Map<Long, CachedChunk> worldChunks = chunks.computeIfAbsent(world, key -> new HashMap<>());
+        int needed = 0;
+        for (long key : keys) {
+            CachedChunk chunk = worldChunks.get(key);
+            if (chunk == null || chunk.changedAt > chunk.takenAt) {
+                needed++;
+            }
+        }
+        // a ray needing more than a whole tick's worth still goes once nothing else has taken any
+        if (needed > budget && budget < SNAPSHOTS_PER_TICK) {
+            return budget;
+        }
+        ChunkSnapshot[] snapshots = new ChunkSnapshot[keys.length];
+        CachedChunk[] crossed = new CachedChunk[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            CachedChunk chunk = worldChunks.get(keys[i]);
+            if (chunk == null) {
+                chunk = new CachedChunk();
+                worldChunks.put(keys[i], chunk);
+                chunkCount++;
+            }
+            if (chunk.changedAt > chunk.takenAt) {
+                int chunkX = (int) (keys[i] >> 32);
+                int chunkZ = (int) keys[i];
+                // unloaded chunks count as open air, and are looked at again when they load
+                chunk.snapshot = world.isChunkLoaded(chunkX, chunkZ)
+                        ? world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false) : null;
+                chunk.takenAt = clock;
+                budget--;
+            }
+            chunk.used = tick;
+            crossed[i] = chunk;
+            snapshots[i] = chunk.snapshot;
+        }
+        pair.world = world;
+        pair.ax = positions.xs[a];
+        pair.ay = positions.ys[a];
+        pair.az = positions.zs[a];
+        pair.bx = positions.xs[b];
+        pair.by = positions.ys[b];
+        pair.bz = positions.zs[b];
+        pair.chunks = crossed;
+        pair.castAt = clock;
+        pair.pending = true;
+        int maxHeight = world.getMaxHeight();
+        workers.execute(() -> {
+            try {
+                pair.factor = march(ax, ay, az, bx, by, bz, keys, snapshots, maxHeight, perBlock);
+                raysCast.incrementAndGet();
+            } finally {
+                pair.pending = false;
+            }
+        });
+        return Math.max(0, budget);
+    }
+
+    /**
+     * Every chunk the blocks {@link #march} visits between two points are in, in order, as {@link #chunkKey}s.
+     * Walks the same blocks the same way, so a ray never reaches a chunk it wasn't given a snapshot for.
+     */
+    static long[] chunksCrossed(double x0, double y0, double z0, double x1, double y1, double z1) {
+        Ray ray = new Ray(x0, y0, z0, x1, y1, z1);
+        long[] keys = new long[4];
+        int count = 0;
+        keys[count++] = chunkKey(ray.x >> 4, ray.z >> 4);
+        for (int i = 1; i < ray.steps; i++) {
+            ray.step();
+            long key = chunkKey(ray.x >> 4, ray.z >> 4);
+            if (key != keys[count - 1]) {
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+                keys[count++] = key;
+            }
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Walks every block between two points (leaving out the ones they're in) and works out how much sound makes
+     * it through. Only reads the snapshots it is given, so it can run on any thread.
+     *
+     * @param keys
+     *        The chunks from {@link #chunksCrossed} for the same two points, with their snapshots
+     */
+    static float march(double x0, double y0, double z0, double x1, double y1, double z1, long[] keys,
+                       ChunkSnapshot[] snapshots, int maxHeight, float perBlock) {
+        Ray ray = new Ray(x0, y0, z0, x1, y1, z1);
+        float factor = 1;
+        int chunk = 0;
+        // the last step lands in the end block, which is left out like the start one
+        for (int i = 1; i < ray.steps; i++) {
+            ray.step();
+            long key = chunkKey(ray.x >> 4, ray.z >> 4);
+            // the keys are in the order the ray reaches them
+            while (keys[chunk] != key && chunk < keys.length - 1) {
+                chunk++;
+            }
+            if (ray.y < 0 || ray.y >= maxHeight) {
+                continue;
+            }
+            ChunkSnapshot snapshot = keys[chunk] == key ? snapshots[chunk] : null;
+            if (snapshot != null && snapshot.getBlockType(ray.x & 15, ray.y, ray.z & 15).isOccluding()) {
+                factor *= perBlock;
+                if (factor <= MIN_FACTOR) {
+                    return MIN_FACTOR;
+                }
+            }
+        }
+        return factor;
+    }
+
+    static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private void forgetIdle() {
+        rehashPairs(pairValues.length);
+        for (Iterator<Map<Long, CachedChunk>> worlds = chunks.values().iterator(); worlds.hasNext(); ) {
+            Map<Long, CachedChunk> worldChunks = worlds.next();
+            worldChunks.values().removeIf(chunk -> {
+                if (tick - chunk.used <= IDLE_TICKS) {
+                    return false;
+                }
+                // changes to it aren't tracked any more, so any pair still holding on to it has to cast again
+                chunk.changedAt = Long.MAX_VALUE;
+                return true;
+            });
+            if (worldChunks.isEmpty()) {
+                worlds.remove();
+            }
+        }
+        int count = 0;
+        for (Map<Long, CachedChunk> worldChunks : chunks.values()) {
+            count += worldChunks.size();
+        }
+        chunkCount = count;
+    }
+
+    private void changed(Block block) {
+        changed(block.getWorld(), block.getX() >> 4, block.getZ() >> 4);
+    }
+
+    private void changed(World world, int chunkX, int chunkZ) {
+        Map<Long, CachedChunk> worldChunks = chunks.get(world);
+        CachedChunk chunk = worldChunks == null ? null : worldChunks.get(chunkKey(chunkX, chunkZ));
+        if (chunk != null) {
+            chunk.changedAt = ++clock;
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        changed(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        changed(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        changed(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        changed(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        changed(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        changed(event.getBlock());
+        for (Block block : event.getBlocks()) {
+            changed(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        changed(event.getBlock());
+        for (Block block : event.getBlocks()) {
+            changed(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        changed(event.getBlock());
+        for (Block block : event.blockList()) {
+            changed(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        changed(event.getBlock());
+    }
+
+    // endermen, falling sand and gravel, withers, ravagers trampling and the like
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        changed(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        for (Block block : event.blockList()) {
+            changed(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        Chunk chunk = event.getChunk();
+        changed(chunk.getWorld(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Chunk chunk = event.getChunk();
+        changed(chunk.getWorld(), chunk.getX(), chunk.getZ());
+    }
+
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Pairs with a cached result.
+     */
+    public int getPairCount() {
+        return pairCount;
+    }
+
+    /**
+     * Chunks with a cached snapshot.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public long getRaysCast() {
+        return raysCast.get();
+    }
+
+    /**
+     * Steps from the block one point is in to the block another is in, one block face at a time.
+     */
+    static final class Ray {
+        int x;
+        int y;
+        int z;
+        // blocks stepped through to get to the end one
+        final int steps;
+        private final int stepX;
+        private final int stepY;
+        private final int stepZ;
+        // how far along the line the next block boundary on each axis is, and the distance between boundaries
+        private double nextX;
+        private double nextY;
+        private double nextZ;
+        private final double deltaX;
+        private final double deltaY;
+        private final double deltaZ;
+
+        Ray(double x0, double y0, double z0, double x1, double y1, double z1) {
+            x = (int) Math.floor(x0);
+            y = (int) Math.floor(y0);
+            z = (int) Math.floor(z0);
+            steps = Math.abs((int) Math.floor(x1) - x) + Math.abs((int) Math.floor(y1) - y)
+                    + Math.abs((int) Math.floor(z1) - z);
+            double dx = x1 - x0;
+            double dy = y1 - y0;
+            double dz = z1 - z0;
+            stepX = dx > 0 ? 1 : -1;
+            stepY = dy > 0 ? 1 : -1;
+            stepZ = dz > 0 ? 1 : -1;
+            nextX = dx == 0 ? Double.POSITIVE_INFINITY : ((dx > 0 ? x + 1 - x0 : x0 - x) / Math.abs(dx));
+            nextY = dy == 0 ? Double.POSITIVE_INFINITY : ((dy > 0 ? y + 1 - y0 : y0 - y) / Math.abs(dy));
+            nextZ = dz == 0 ? Double.POSITIVE_INFINITY : ((dz > 0 ? z + 1 - z0 : z0 - z) / Math.abs(dz));
+            deltaX = 1 / Math.abs(dx);
+            deltaY = 1 / Math.abs(dy);
+            deltaZ = 1 / Math.abs(dz);
+        }
+
+        void step() {
+            if (nextX < nextY && nextX < nextZ) {
+                x += stepX;
+                nextX += deltaX;
+            } else if (nextY < nextZ) {
+                y += stepY;
+                nextY += deltaY;
+            } else {
+                z += stepZ;
+                nextZ += deltaZ;
+            }
+        }
+    }
+
+    private static final class CachedChunk {
+        // null if the chunk wasn't loaded, taken again once it has changed since
+        ChunkSnapshot snapshot;
+        long takenAt = -1;
+        long changedAt;
+        long used;
+    }
+
+    private static final class Pair {
+        // where both players' feet were when the ray was cast, and the chunks it crossed, null until it first has been
+        World world;
+        double ax, ay, az, bx, by, bz;
+        CachedChunk[] chunks;
+        long castAt;
+        long seen;
+        // written by the worker casting the ray
+        volatile float factor = 1;
+        volatile boolean pending;
+    }
+}
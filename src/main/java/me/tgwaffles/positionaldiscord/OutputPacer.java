@@ -0,0 +1,174 @@
+package me.tgwaffles.positionaldiscord;
+
+/**
+ * Keeps a listener's output buffer as short as it can be without JDA running dry in the middle of a sentence.
+ * <p>
+ * The mixer fills the buffer on its own 20ms clock and JDA empties it on another, so the two drift apart, and
+ * either can wake up late now and then. Rather than letting frames pile up to a fixed limit, the pacer aims for a
+ * target depth: the start of each talk spurt is held back until that many frames are queued, and once playing,
+ * a frame is dropped whenever the buffer never got down to the target for a whole second. Each underrun (the
+ * buffer running dry with the next frame only a tick late) means building back up to the target, and a second one
+ * within a window raises the target a frame. After a quiet spell it is lowered again, though never below how far
+ * the depth has been wandering.
+ * <p>
+ * Everything is counted in JDA's pulls rather than wall time, so a replay run faster than real time paces the
+ * same way. {@link #ready} is only called from JDA's send thread, {@link #wantsFrame} and {@link #published} only
+ * from whichever worker is mixing the listener.
+ */
+public class OutputPacer {
+    static final int MAX_TARGET = 8;
+    // frames on top of the target the mixer may queue before it stops mixing, in case JDA pulls late
+    static final int HEADROOM = 3;
+    // pulls (of 20ms) while playing that the depth is watched over before deciding whether a frame can go, a
+    // window carries on across talk spurts
+    private static final int WINDOW = 50;
+    // windows without an underrun before trying a lower target
+    private static final int CALM_WINDOWS = 10;
+    // how much the drift and jitter averages move towards each window's value
+    private static final double AVERAGE_WEIGHT = 1.0 / 8;
+
+    // JDA's side
+    private boolean playing;
+    private int waited;
+    private int windowPulls;
+    private int windowMin;
+    private int windowMax;
+    private int windowStart;
+    private int calmWindows;
+    private int seenUnderruns;
+    private long lastUnderrun = -1;
+    private long framesAtUnderrun;
+    // both ends are on this machine, so start just in time and let underruns say otherwise
+    private volatile int target = 1;
+    private volatile long pulls;
+    private volatile long dryAt = -1;
+    private volatile long shed;
+    // frames per second the buffer has been growing by, and frames it wanders by within a second
+    private volatile double driftFrames;
+    private volatile double jitterFrames;
+
+    // the mixer's side
+    private long publishedAt = -1;
+    private volatile long frames;
+    private volatile int underruns;
+
+    /**
+     * Whether JDA should be handed a frame now. Called every 20ms from JDA's send thread, which also makes it the
+     * clock everything here is counted in.
+     */
+    public boolean ready(AudioRingBuffer queue) {
+        long pull = pulls + 1;
+        pulls = pull;
+        int underrunsNow = underruns;
+        if (underrunsNow != seenUnderruns) {
+            seenUnderruns = underrunsNow;
+            // running dry once just means building back up to the target, only raise it if that wasn't enough.
+            // If the mixer fell behind in between, it's out of time rather than jittery, and a deeper buffer
+            // would only add latency without ever filling
+            long framesNow = frames;
+            if (lastUnderrun >= 0 && pull - lastUnderrun <= WINDOW
+                    && framesNow - framesAtUnderrun >= pull - lastUnderrun - 1) {
+                target = Math.min(MAX_TARGET, target + 1);
+            }
+            lastUnderrun = pull;
+            framesAtUnderrun = framesNow;
+            calmWindows = 0;
+        }
+        int depth = queue.readable();
+        if (!playing) {
+            if (depth == 0) {
+                waited = 0;
+                return false;
+            }
+            // hold the start of a spurt back until it can ride out a late tick, or for as long as filling up
+            // should have taken, so a spurt shorter than the target still gets played
+            if (depth < target && ++waited < target) {
+                return false;
+            }
+            playing = true;
+            waited = 0;
+        }
+        if (depth == 0) {
+            // either the speaker stopped or the mixer is late, which one only shows once it publishes again
+            playing = false;
+            dryAt = pull;
+            return false;
+        }
+        observe(queue, depth);
+        return true;
+    }
+
+    private void observe(AudioRingBuffer queue, int depth) {
+        if (windowPulls == 0) {
+            windowMin = depth;
+            windowMax = depth;
+            windowStart = depth;
+        } else {
+            windowMin = Math.min(windowMin, depth);
+            windowMax = Math.max(windowMax, depth);
+        }
+        if (++windowPulls < WINDOW) {
+            return;
+        }
+        windowPulls = 0;
+        jitterFrames += (windowMax - windowMin - jitterFrames) * AVERAGE_WEIGHT;
+        driftFrames += ((depth - windowStart) * (1000.0 / (WINDOW * MixerEngine.TICK_MILLIS)) - driftFrames)
+                * AVERAGE_WEIGHT;
+        if (windowMin > target) {
+            // a whole second without needing that much queued, it's only adding latency
+            queue.trim(depth - 1);
+            shed++;
+        }
+        if (++calmWindows >= CALM_WINDOWS) {
+            calmWindows = 0;
+            int floor = Math.max(1, (int) Math.ceil(jitterFrames));
+            if (target > floor) {
+                target--;
+            }
+        }
+    }
+
+    /**
+     * Whether the mixer should bother mixing another frame, false once JDA has fallen well behind the target.
+     */
+    public boolean wantsFrame(AudioRingBuffer queue) {
+        // size, not readable, is what the producer side can rely on, it counts the frame JDA is holding too
+        return queue.size() <= target + HEADROOM;
+    }
+
+    /**
+     * Tells the pacer the mixer has just queued a frame.
+     */
+    public void published() {
+        long pull = pulls;
+        // ran dry since the last frame, and this one came straight after: the speaker hadn't stopped, we were late
+        if (publishedAt >= 0 && dryAt > publishedAt && pull - publishedAt <= 2) {
+            underruns++;
+        }
+        publishedAt = pull;
+        frames++;
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    public int getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Frames dropped to bring the latency down.
+     */
+    public long getShed() {
+        return shed;
+    }
+
+    public double getDriftFrames() {
+        return driftFrames;
+    }
+
+    public double getJitterFrames() {
+        return jitterFrames;
+    }
+}
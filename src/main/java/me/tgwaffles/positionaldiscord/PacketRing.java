@@ -0,0 +1,86 @@
+package me.tgwaffles.positionaldiscord;
+
+import net.dv8tion.jda.api.audio.OpusPacket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer queue of still encoded packets from one speaker.
+ * Queuing a packet is just storing a reference, decoding is left until we know someone can hear it.
+ */
+public class PacketRing {
+    private final OpusPacket[] slots;
+    private final long[] arrivals;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // each counter has a single writing thread
+    private volatile long overflows;
+    private volatile long skipped;
+    private long lastArrival;
+
+    public PacketRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new OpusPacket[size];
+        arrivals = new long[size];
+        mask = size - 1;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @param arrivalNanos
+     *        When the packet was received, in {@link System#nanoTime()} terms
+     */
+    public boolean offer(OpusPacket packet, long arrivalNanos) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() >= slots.length) {
+            overflows++;
+            return false;
+        }
+        slots[(int) currentTail & mask] = packet;
+        arrivals[(int) currentTail & mask] = arrivalNanos;
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    public OpusPacket poll() {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        int slot = (int) currentHead & mask;
+        OpusPacket packet = slots[slot];
+        slots[slot] = null;
+        lastArrival = arrivals[slot];
+        head.lazySet(currentHead + 1);
+        return packet;
+    }
+
+    /**
+     * When the packet returned by the last call to {@link #poll()} was queued, in {@link System#nanoTime()} terms.
+     */
+    public long getLastArrival() {
+        return lastArrival;
+    }
+
+    /**
+     * Throws away everything queued without decoding it.
+     */
+    public void skipAll() {
+        while (poll() != null) {
+            skipped++;
+        }
+    }
+
+    public long getOverflows() {
+        return overflows;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+}
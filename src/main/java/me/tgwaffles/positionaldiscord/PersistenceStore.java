@@ -0,0 +1,303 @@
+package me.tgwaffles.positionaldiscord;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Stores linked accounts, channels, volumes, locks and pending registrations in a small versioned binary file.
+ * <p>
+ * Saves are handed to a background thread and coalesced, so a burst of commands only causes one write, and
+ * the main thread never waits on the disk. Files are written next to the real one and moved over it once
+ * they have been flushed, so a crash mid-write leaves the previous version intact. A file that can't be read is
+ * moved aside to stored.dat.corrupt before anything is saved over it. The old Java serialised stored.db is read
+ * once and converted.
+ */
+public class PersistenceStore {
+    private static final int MAGIC = 0x50445354; // "PDST"
+    public static final int VERSION = 1;
+    private static final long SAVE_DELAY_MILLIS = 1000L;
+
+    private final File file;
+    private final File legacyFile;
+    private final Logger logger;
+    private final ScheduledExecutorService writer;
+    private final AtomicReference<StoredData> pending = new AtomicReference<>();
+    // set if an unreadable file couldn't be moved out of the way, saving would overwrite it
+    private volatile boolean keepUnreadable;
+
+    public PersistenceStore(File dataFolder, Logger logger) {
+        this.file = new File(dataFolder, "stored.dat");
+        this.legacyFile = new File(dataFolder, "stored.db");
+        this.logger = logger;
+        writer = Executors.newSingleThreadScheduledExecutor(
+                new MixerEngine.NamedThreadFactory("PositionalDiscord Storage"));
+    }
+
+    /**
+     * @return the stored data, or null if nothing has been saved yet
+     * @throws IOException if the file couldn't be read, by then it's been moved aside or saving has been turned
+     *         off, so whatever can still be recovered from it isn't overwritten
+     */
+    public StoredData load() throws IOException {
+        if (file.exists()) {
+            try {
+                return read(file);
+            } catch (IOException e) {
+                throw moveAside(e);
+            }
+        }
+        if (!legacyFile.exists()) {
+            return null;
+        }
+        StoredData data = readLegacy(legacyFile);
+        write(data);
+        File migrated = new File(legacyFile.getPath() + ".migrated");
+        if (!legacyFile.renameTo(migrated)) {
+            logger.log(Level.WARNING, "Couldn't rename " + legacyFile + " after converting it, it will be ignored.");
+        }
+        logger.log(Level.INFO, "Converted " + legacyFile.getName() + " to " + file.getName());
+        return data;
+    }
+
+    private IOException moveAside(IOException cause) {
+        File corrupt = new File(file.getPath() + ".corrupt");
+        try {
+            Files.move(file.toPath(), corrupt.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            keepUnreadable = true;
+            cause.addSuppressed(e);
+            return new IOException("Couldn't read " + file + " or move it aside, nothing will be saved until it's " +
+                    "fixed or removed", cause);
+        }
+        return new IOException("Couldn't read " + file + ", moved it to " + corrupt.getName() +
+                " and starting without stored data", cause);
+    }
+
+    /**
+     * Queues the data to be written shortly. Any newer data queued before then replaces it.
+     */
+    public void save(StoredData data) {
+        if (pending.getAndSet(data) == null) {
+            try {
+                writer.schedule(this::flush, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // already shutting down, close() writes whatever is pending
+            }
+        }
+    }
+
+    private void flush() {
+        StoredData data = pending.getAndSet(null);
+        if (data == null) {
+            return;
+        }
+        try {
+            write(data);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Couldn't save user data! Restoring users won't work.", e);
+        }
+    }
+
+    /**
+     * Stops the background writer and writes the given data straight away.
+     */
+    public void close(StoredData data) throws IOException {
+        // whatever is still queued is older than the data we've been given
+        pending.set(null);
+        writer.shutdownNow();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        write(data);
+    }
+
+    private synchronized void write(StoredData data) throws IOException {
+        if (keepUnreadable) {
+            throw new IOException("Not overwriting " + file + ", it couldn't be read or moved aside");
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Couldn't create " + parent);
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(temporary)) {
+            CRC32 checksum = new CRC32();
+            DataOutputStream output = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(fileStream), checksum));
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            writeBody(output, data);
+            output.flush();
+            // the checksum itself isn't covered by the checksum
+            new DataOutputStream(fileStream).writeLong(checksum.getValue());
+            fileStream.getFD().sync();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeBody(DataOutputStream output, StoredData data) throws IOException {
+        output.writeInt(data.links.size());
+        for (Map.Entry<String, UUID> entry : data.links.entrySet()) {
+            output.writeLong(Long.parseUnsignedLong(entry.getKey()));
+            writeUUID(output, entry.getValue());
+        }
+        output.writeInt(data.channels.size());
+        for (Map.Entry<UUID, Integer> entry : data.channels.entrySet()) {
+            writeUUID(output, entry.getKey());
+            output.writeInt(entry.getValue());
+        }
+        output.writeInt(data.volumes.size());
+        for (Map.Entry<UUID, HashMap<UUID, Integer>> entry : data.volumes.entrySet()) {
+            writeUUID(output, entry.getKey());
+            output.writeInt(entry.getValue().size());
+            for (Map.Entry<UUID, Integer> volume : entry.getValue().entrySet()) {
+                writeUUID(output, volume.getKey());
+                // volumes are always between 0 and 100
+                output.writeByte(volume.getValue());
+            }
+        }
+        output.writeInt(data.locks.size());
+        for (Map.Entry<Integer, UUID> entry : data.locks.entrySet()) {
+            output.writeInt(entry.getKey());
+            writeUUID(output, entry.getValue());
+        }
+        output.writeInt(data.registrationCodes.size());
+        for (Map.Entry<String, RegistrationData> entry : data.registrationCodes.entrySet()) {
+            output.writeUTF(entry.getKey());
+            writeUUID(output, entry.getValue().getPlayerUUID());
+            output.writeLong(Long.parseUnsignedLong(entry.getValue().getDiscordId()));
+        }
+    }
+
+    private static StoredData read(File source) throws IOException {
+        try (FileInputStream fileStream = new FileInputStream(source)) {
+            CRC32 checksum = new CRC32();
+            long bodyLength = source.length() - Long.BYTES;
+            DataInputStream input = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new BoundedInputStream(fileStream, bodyLength)), checksum));
+            if (input.readInt() != MAGIC) {
+                throw new IOException(source + " isn't a PositionalDiscord data file");
+            }
+            int version = input.readUnsignedShort();
+            if (version > VERSION) {
+                throw new IOException(source + " was written by a newer version (" + version + ")");
+            }
+            StoredData data = new StoredData();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                data.links.put(Long.toUnsignedString(input.readLong()), readUUID(input));
+            }
+            count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                data.channels.put(readUUID(input), input.readInt());
+            }
+            count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                UUID owner = readUUID(input);
+                int volumeCount = input.readInt();
+                HashMap<UUID, Integer> volumes = new HashMap<>();
+                for (int v = 0; v < volumeCount; v++) {
+                    volumes.put(readUUID(input), input.readUnsignedByte());
+                }
+                data.volumes.put(owner, volumes);
+            }
+            count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                data.locks.put(input.readInt(), readUUID(input));
+            }
+            count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String code = input.readUTF();
+                UUID uuid = readUUID(input);
+                data.registrationCodes.put(code, new RegistrationData(uuid, Long.toUnsignedString(input.readLong())));
+            }
+            long expected = checksum.getValue();
+            if (new DataInputStream(fileStream).readLong() != expected) {
+                throw new IOException(source + " is corrupt (checksum mismatch)");
+            }
+            return data;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static StoredData readLegacy(File source) throws IOException {
+        try (ObjectInputStream objectStream = new ObjectInputStream(new FileInputStream(source))) {
+            StoredData data = new StoredData();
+            data.links.putAll((Map<String, UUID>) objectStream.readObject());
+            data.channels.putAll((Map<UUID, Integer>) objectStream.readObject());
+            data.volumes.putAll((Map<UUID, HashMap<UUID, Integer>>) objectStream.readObject());
+            data.locks.putAll((Map<Integer, UUID>) objectStream.readObject());
+            data.registrationCodes.putAll((Map<String, RegistrationData>) objectStream.readObject());
+            return data;
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Couldn't read " + source, e);
+        }
+    }
+
+    private static void writeUUID(DataOutputStream output, UUID uuid) throws IOException {
+        output.writeLong(uuid.getMostSignificantBits());
+        output.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream input) throws IOException {
+        return new UUID(input.readLong(), input.readLong());
+    }
+
+    /**
+     * A copy of everything that gets saved, safe to hand to another thread.
+     */
+    public static class StoredData {
+        final HashMap<String, UUID> links = new HashMap<>();
+        final HashMap<UUID, Integer> channels = new HashMap<>();
+        final HashMap<UUID, HashMap<UUID, Integer>> volumes = new HashMap<>();
+        final HashMap<Integer, UUID> locks = new HashMap<>();
+        final HashMap<String, RegistrationData> registrationCodes = new HashMap<>();
+    }
+
+    /**
+     * Stops the checksummed reader before the trailing checksum.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int value = super.read();
+            if (value >= 0) {
+                remaining--;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+
+/**
+ * Everything the mixer needs to know about the players, captured on the main thread once per server tick.
+ * <p>
+ * A snapshot is never modified after it has been published, so the audio threads can read it without locks
+ * and without going anywhere near the Bukkit API. Players are referred to by their index in the snapshot,
+ * and each player's neighbours are stored as one run in the flat neighbour arrays.
+ */
+public final class PositionSnapshot {
+    public static final PositionSnapshot EMPTY = new PositionSnapshot(0, 0, new String[0],
+            Collections.emptyMap(), new int[0], new double[0], new double[0], new double[0], new double[0],
+            new double[0], new int[0], new boolean[0], new int[0], new int[0], new int[0], new int[1], new int[0],
+            new float[0], new boolean[0], new boolean[0]);
+
+    final long tick;
+    final int factor;
+    final String[] discordIds;
+    // the same ids as longs, for looking players' slots up in VoiceSlots
+    final long[] snowflakes;
+    private final Map<String, Integer> indexByDiscordId;
+    final int[] worlds;
+    final double[] xs;
+    final double[] ys;
+    final double[] zs;
+    // horizontal part of the normalised look direction
+    final double[] lookXs;
+    final double[] lookZs;
+    final int[] channels;
+    final boolean[] inChannel;
+    // everyone sharing player i's channel is channelMembers[channelStart[i]] to channelMembers[channelEnd[i] - 1]
+    final int[] channelMembers;
+    final int[] channelStart;
+    final int[] channelEnd;
+    // neighbours of player i are neighbours[neighbourStart[i]] to neighbours[neighbourStart[i + 1] - 1],
+    // in ascending order
+    final int[] neighbourStart;
+    final int[] neighbours;
+    // the listener's /volume setting for the speaker, times how muffled they are by blocks in between
+    final float[] volumes;
+    final boolean[] sharedChannel;
+    // whether anyone with a voice connection is close enough to hear player i
+    final boolean[] audible;
+
+    PositionSnapshot(long tick, int factor, String[] discordIds, Map<String, Integer> indexByDiscordId, int[] worlds,
+                     double[] xs, double[] ys, double[] zs, double[] lookXs, double[] lookZs, int[] channels,
+                     boolean[] inChannel, int[] channelMembers, int[] channelStart, int[] channelEnd,
+                     int[] neighbourStart, int[] neighbours, float[] volumes, boolean[] sharedChannel,
+                     boolean[] audible) {
+        this.tick = tick;
+        this.factor = factor;
+        this.discordIds = discordIds;
+        snowflakes = new long[discordIds.length];
+        for (int i = 0; i < discordIds.length; i++) {
+            snowflakes[i] = Long.parseUnsignedLong(discordIds[i]);
+        }
+        this.indexByDiscordId = indexByDiscordId;
+        this.worlds = worlds;
+        this.xs = xs;
+        this.ys = ys;
+        this.zs = zs;
+        this.lookXs = lookXs;
+        this.lookZs = lookZs;
+        this.channels = channels;
+        this.inChannel = inChannel;
+        this.channelMembers = channelMembers;
+        this.channelStart = channelStart;
+        this.channelEnd = channelEnd;
+        this.neighbourStart = neighbourStart;
+        this.neighbours = neighbours;
+        this.volumes = volumes;
+        this.sharedChannel = sharedChannel;
+        this.audible = audible;
+    }
+
+    /**
+     * Captures the players currently in the spatial index. Must be called from the main thread.
+     */
+    public static PositionSnapshot capture(PositionalDiscord plugin, SpatialIndex index, long tick) {
+        int size = index.size();
+        UUID[] uuids = new UUID[size];
+        String[] discordIds = new String[size];
+        Map<String, Integer> indexByDiscordId = new HashMap<>(size * 2);
+        int[] worlds = new int[size];
+        double[] xs = new double[size];
+        double[] ys = new double[size];
+        double[] zs = new double[size];
+        double[] lookXs = new double[size];
+        double[] lookZs = new double[size];
+        int[] channels = new int[size];
+        boolean[] inChannel = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Player player = index.getPlayer(i);
+            UUID uuid = player.getUniqueId();
+            uuids[i] = uuid;
+            discordIds[i] = plugin.forwarder.getDiscordId(uuid);
+            indexByDiscordId.put(discordIds[i], i);
+            worlds[i] = index.getWorldId(i);
+            xs[i] = index.getX(i);
+            ys[i] = index.getY(i);
+            zs[i] = index.getZ(i);
+            Location location = player.getLocation();
+            // same as Location#getDirection, without the Vector
+            double pitch = Math.toRadians(location.getPitch());
+            double yaw = Math.toRadians(location.getYaw());
+            lookXs[i] = -Math.cos(pitch) * Math.sin(yaw);
+            lookZs[i] = Math.cos(pitch) * Math.cos(yaw);
+            Integer channel = plugin.playerChannels.get(uuid);
+            if (channel != null) {
+                channels[i] = channel;
+                inChannel[i] = true;
+            }
+        }
+
+        // group everyone in a channel together, so finding a player's channel mates costs one pass over them
+        long[] channelKeys = new long[size];
+        int channelled = 0;
+        for (int i = 0; i < size; i++) {
+            if (inChannel[i]) {
+                channelKeys[channelled++] = ((long) channels[i] << 32) | i;
+            }
+        }
+        Arrays.sort(channelKeys, 0, channelled);
+        int[] channelMembers = new int[channelled];
+        int[] channelStart = new int[size];
+        int[] channelEnd = new int[size];
+        for (int run = 0; run < channelled; ) {
+            int runEnd = run + 1;
+            while (runEnd < channelled && (channelKeys[runEnd] >> 32) == (channelKeys[run] >> 32)) {
+                runEnd++;
+            }
+            for (int m = run; m < runEnd; m++) {
+                int member = (int) channelKeys[m];
+                channelMembers[m] = member;
+                channelStart[member] = run;
+                channelEnd[member] = runEnd;
+            }
+            run = runEnd;
+        }
+
+        int[] neighbourStart = new int[size + 1];
+        int[] scratch = new int[size];
+        int[] neighbours = new int[Math.max(16, size * 4)];
+        // seen[j] == i + 1 once j has been added as a neighbour of i
+        int[] seen = new int[size];
+        int edges = 0;
+        for (int i = 0; i < size; i++) {
+            neighbourStart[i] = edges;
+            int found = index.collectNearby(i, PositionalDiscord.HEARING_RANGE, scratch, 0);
+            for (int n = 0; n < found; n++) {
+                seen[scratch[n]] = i + 1;
+            }
+            for (int m = channelStart[i]; m < channelEnd[i]; m++) {
+                int j = channelMembers[m];
+                if (j != i && seen[j] != i + 1) {
+                    seen[j] = i + 1;
+                    scratch[found++] = j;
+                }
+            }
+            // sorted so the other direction of a pair can be found with a binary search
+            Arrays.sort(scratch, 0, found);
+            if (edges + found > neighbours.length) {
+                neighbours = Arrays.copyOf(neighbours, Math.max(neighbours.length * 2, edges + found));
+            }
+            System.arraycopy(scratch, 0, neighbours, edges, found);
+            edges += found;
+        }
+        neighbourStart[size] = edges;
+        neighbours = Arrays.copyOf(neighbours, edges);
+
+        float[] volumes = new float[edges];
+        boolean[] sharedChannel = new boolean[edges];
+        boolean[] audible = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            if (plugin.forwarder.slots.isOpen(discordIds[i])) {
+                for (int edge = neighbourStart[i]; edge < neighbourStart[i + 1]; edge++) {
+                    audible[neighbours[edge]] = true;
+                }
+            }
+            HashMap<UUID, Integer> playerVolumes = plugin.playerVolumesMap.get(uuids[i]);
+            for (int edge = neighbourStart[i]; edge < neighbourStart[i + 1]; edge++) {
+                int j = neighbours[edge];
+                Integer volume = playerVolumes == null ? null : playerVolumes.get(uuids[j]);
+                volumes[edge] = volume == null ? 1 : volume / 100f;
+                sharedChannel[edge] = inChannel[i] && inChannel[j] && channels[i] == channels[j];
+            }
+        }
+        return new PositionSnapshot(tick, plugin.factor, discordIds, indexByDiscordId, worlds, xs, ys, zs,
+                lookXs, lookZs, channels, inChannel, channelMembers, channelStart, channelEnd, neighbourStart,
+                neighbours, volumes, sharedChannel, audible);
+    }
+
+    public int size() {
+        return discordIds.length;
+    }
+
+    /**
+     * @return the player's index in this snapshot, or -1 if they aren't in it
+     */
+    public int indexOf(String discordId) {
+        Integer index = indexByDiscordId.get(discordId);
+        return index == null ? -1 : index;
+    }
+
+    public String getDiscordId(int index) {
+        return discordIds[index];
+    }
+
+    public int neighbourStart(int index) {
+        return neighbourStart[index];
+    }
+
+    public int neighbourEnd(int index) {
+        return neighbourStart[index + 1];
+    }
+
+    public int neighbour(int edge) {
+        return neighbours[edge];
+    }
+}
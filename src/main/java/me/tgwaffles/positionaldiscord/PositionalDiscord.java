@@ -14,34 +14,54 @@ import org.bukkit.Note;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
-import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
 
 import javax.security.auth.login.LoginException;
-import java.io.IOException;
+import java.io.File;
 import java.util.*;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class PositionalDiscord extends JavaPlugin implements CommandExecutor, Listener {
     Logger log;
     JDA api;
-    HashMap<Player, ArrayList<Player>> nearbyPlayers = new HashMap<>();
+    // half the side of the box around a player that other players can be heard in
+    public static final double HEARING_RANGE = 128;
+    // replaced wholesale every tick, the audio threads only ever read it
+    volatile PositionSnapshot positionSnapshot = PositionSnapshot.EMPTY;
+    final SpatialIndex spatialIndex = new SpatialIndex(64);
+    private long tickCount;
     HashMap<UUID, Integer> playerChannels = new HashMap<>();
+    final ChannelIndex channelIndex = new ChannelIndex();
     HashMap<UUID, HashMap<UUID, Integer>> playerVolumesMap = new HashMap<>();
     HashMap<Integer, UUID> lockedChannels = new HashMap<>();
     HashMap<String, RegistrationData> registrationCodes = new HashMap<>();
     AudioForwarder forwarder;
+    // null outside a server, like in the load test
+    OcclusionEngine occlusion;
     int factor;
 
+    public PositionalDiscord() {
+    }
+
+    /**
+     * Only for running outside a server, like the load test does.
+     */
+    PositionalDiscord(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
+
     public void onEnable() {
         this.saveDefaultConfig();
         this.getServer().getPluginManager().registerEvents(this, this);
@@ -54,6 +74,14 @@ public class PositionalDiscord extends JavaPlugin implements CommandExecutor, Li
                 GatewayIntent.GUILD_VOICE_STATES
         );
         forwarder = new AudioForwarder(this);
+        forwarder.mixer.start();
+        occlusion = new OcclusionEngine(getConfig().getDouble("occlusionRange", 0),
+                (float) getConfig().getDouble("occlusionPerBlock", 0.5), getConfig().getInt("occlusionThreads", 1));
+        if (occlusion.isEnabled()) {
+            this.getServer().getPluginManager().registerEvents(occlusion, this);
+        }
+        // players are already online if we're being reloaded
+        channelIndex.rebuild(playerChannels, getServer().getOnlinePlayers());
         factor = this.getConfig().getInt("factor");
         try {
             api = JDABuilder.createDefault(this.getConfig().getString("discordToken"), intents)
@@ -69,32 +97,22 @@ public class PositionalDiscord extends JavaPlugin implements CommandExecutor, Li
 
         new BukkitRunnable() {
             public void run() {
-                for (Player player : getServer().getOnlinePlayers()) {
-                    nearbyPlayers.put(player, getNearbyPlayers(player));
-                }
+                publishSnapshot();
             }
         }.runTaskTimer(this, 1, 1);
     }
 
     public void onDisable() {
-        sendSave();
         for (Guild guild : api.getGuilds()) {
             forwarder.closeGuild(guild);
         }
+        forwarder.shutdown();
+        occlusion.shutdown();
         api.shutdown();
     }
 
     public ArrayList<Player> getPlayersInChannel(int channelId) {
-        ArrayList<Player> playersInChannel = new ArrayList<>();
-        for (Map.Entry<UUID, Integer> entry : playerChannels.entrySet()) {
-            if (entry.getValue() == channelId) {
-                Player player = getServer().getPlayer(entry.getKey());
-                if (player != null) {
-                    playersInChannel.add(player);
-                }
-            }
-        }
-        return playersInChannel;
+        return new ArrayList<>(channelIndex.getMembers(channelId));
     }
 
     public void playJingle(Player player, boolean join) {
@@ -142,6 +160,7 @@ public class PositionalDiscord extends JavaPlugin implements CommandExecutor, Li
         if (args.length == 0) {
             if (playerChannels.get(userId) != null) {
                 int channel = playerChannels.remove(userId);
+                channelIndex.remove(player, channel);
                 announcePlayerInChannel(player, channel, false);
                 player.sendMessage(ChatColor.GOLD + "You have left your channel.");
                 return true;
@@ -156,18 +175,16 @@ public class PositionalDiscord extends JavaPlugin implements CommandExecutor, Li
                 toSend.append(ChatColor.GOLD);
                 toSend.append("List of players in channels:\n");
                 toSend.append(ChatColor.YELLOW);
-                for (Map.Entry<UUID, Integer> entry : playerChannels.entrySet()) {
-                    Player otherPlayer = getServer().getPlayer(entry.getKey());
-                    if (otherPlayer == null) {
-                        continue;
-                    }
-                    int channelId = entry.getValue();
-                    toSend.append(otherPlayer.getName()).append(": ").append(channelId);
+                for (Map.Entry<Integer, ArrayList<Player>> entry : channelIndex.entries()) {
+                    int channelId = entry.getKey();
                     UUID locker = lockedChannels.get(channelId);
-                    if (locker != null) {
-                        toSend.append(" (locked by ").append(getServer().getOfflinePlayer(locker).getName()).append(")");
+                    for (Player otherPlayer : entry.getValue()) {
+                        toSend.append(otherPlayer.getName()).append(": ").append(channelId);
+                        if (locker != null) {
+                            toSend.append(" (locked by ").append(getServer().getOfflinePlayer(locker).getName()).append(")");
+                        }
+                        toSend.append("\n");
                     }
-                    toSend.append("\n");
                 }
                 player.sendMessage(toSend.toString());
                 return true;
@@ -223,7 +240,11 @@ public class PositionalDiscord extends JavaPlugin implements CommandExecutor, Li
             }
             announcePlayerInChannel(player, newChannel, true);
             player.sendMessage(ChatColor.GREEN + "You have joined channel " + newChannel);
-            playerChannels.put(userId, newChannel);
+            Integer previousChannel = playerChannels.put(userId, newChannel);
+            if (previousChannel != null) {
+                channelIndex.remove(player, previousChannel);
+            }
+            channelIndex.add(player, newChannel);
             return true;
         } else {
             player.sendMessage(ChatColor.RED + "Invalid number of arguments.");
@@ -315,21 +336,78 @@ public class PositionalDiscord extends JavaPlugin implements CommandExecutor, Li
         return true;
     }
 
-    private void sendSave() {
-        try {
-            forwarder.saveFile();
-        } catch (IOException e) {
-            this.getLogger().log(Level.SEVERE, "Couldn't save user data! Restoring users won't work.");
+    public boolean handleStatsCommand(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("positionaldiscord.stats")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to do this.");
+            return true;
+        }
+        AudioMetrics metrics = forwarder.metrics;
+        if (args.length == 0) {
+            sender.sendMessage(ChatColor.GOLD + "Mixer: " + ChatColor.WHITE + metrics.getListenerCount() +
+                    " listeners, " + metrics.getSpeakerCount() + " speakers, " + metrics.getMixerThreads() +
+                    " threads");
+            sender.sendMessage(ChatColor.GOLD + "Tick: " + ChatColor.WHITE +
+                    String.format("last %.2fms, p50 %.2fms, p99 %.2fms, max %.2fms, %d overruns in %d ticks",
+                            metrics.getLastTickMillis(), metrics.getTickMillisP50(), metrics.getTickMillisP99(),
+                            metrics.getMaxTickMillis(), metrics.getTickOverruns(), metrics.getTickCount()));
+            sender.sendMessage(ChatColor.GOLD + "Load: " + ChatColor.WHITE +
+                    String.format("%.0f%% of each tick used, %.2f cores busy, %d mixes missed the deadline",
+                            metrics.getTickUtilisation() * 100, metrics.getMixerCoresBusy(),
+                            metrics.getMixesSkipped()));
+            sender.sendMessage(ChatColor.GOLD + "Occlusion: " + ChatColor.WHITE + metrics.getOcclusionPairs() +
+                    " pairs, " + metrics.getOcclusionChunks() + " chunks cached, " + metrics.getOcclusionRaysCast() +
+                    " rays cast");
+            sender.sendMessage(ChatColor.GOLD + "Queued: " + ChatColor.WHITE + metrics.getInputQueueDepth() +
+                    " packets in, " + metrics.getOutputQueueDepth() + " frames out");
+            sender.sendMessage(ChatColor.GOLD + "In: " + ChatColor.WHITE + metrics.getPacketsOverflowed() +
+                    " overflowed, " + metrics.getPacketsSkipped() + " unheard, " + metrics.getPacketsLate() +
+                    " late, " + metrics.getFramesConcealed() + " concealed, " + metrics.getFramesSilent() +
+                    " silent, " + metrics.getDecodesFailed() + " failed to decode, " +
+                    metrics.getInputFramesDropped() + " dropped");
+            sender.sendMessage(ChatColor.GOLD + "Out: " + ChatColor.WHITE + metrics.getSourcesCulled() +
+                    " sources culled, " + metrics.getOutputFramesOverflowed() + " overflowed, " +
+                    metrics.getOutputUnderruns() + " underruns, " + metrics.getOutputFramesShed() + " shed, " +
+                    metrics.getOutputFramesPassedThrough() + " passed through, " +
+                    String.format("%.1f frames targeted", metrics.getOutputTargetFrames()));
+            sender.sendMessage(ChatColor.GOLD + "Latency: " + ChatColor.WHITE +
+                    String.format("p50 %.1fms, p99 %.1fms, max %.1fms", metrics.getLatencyMillisP50(),
+                            metrics.getLatencyMillisP99(), metrics.getLatencyMillisMax()));
+            return true;
+        }
+        if (args.length != 1 || !args[0].equalsIgnoreCase("listeners")) {
+            return false;
+        }
+        for (AudioForwarder.UpdateQueue mixer : forwarder.mixer.getMixers()) {
+            UUID uuid = forwarder.getPlayerUUID(mixer.outputUserId);
+            Player player = uuid == null ? null : getServer().getPlayer(uuid);
+            AudioRingBuffer outputQueue = mixer.outputQueue;
+            Histogram latency = mixer.handler.latency;
+            OutputPacer pacer = mixer.pacer;
+            sender.sendMessage(ChatColor.GOLD + (player == null ? mixer.outputUserId : player.getName()) + ": " +
+                    ChatColor.WHITE + String.format("%d queued (aiming for %d), %d underruns, %d shed, " +
+                            "drift %+.2f frames/s, jitter %.1f frames, latency p50 %.1fms, p99 %.1fms",
+                    outputQueue == null ? 0 : outputQueue.size(), pacer.getTarget(), pacer.getUnderruns(),
+                    pacer.getShed(), pacer.getDriftFrames(), pacer.getJitterFrames(), latency.percentile(50) / 1e3,
+                    latency.percentile(99) / 1e3));
         }
+        return true;
+    }
+
+    private void sendSave() {
+        forwarder.saveFile();
     }
 
     public boolean onCommand (@NotNull CommandSender sender, @NotNull Command command, @NotNull String label,
                               String[] args) {
-        String[] commandsArray = {"volume", "radio", "register", "deregister"};
+        String[] commandsArray = {"volume", "radio", "register", "deregister", "pdstats"};
         List<String> commands = Arrays.asList(commandsArray);
         if (!commands.contains(command.getName().toLowerCase())) {
             return false;
         }
+        if (command.getName().equalsIgnoreCase("pdstats")) {
+            // the console can use this one too
+            return handleStatsCommand(sender, args);
+        }
         if (!(sender instanceof Player)) {
             sender.sendMessage(ChatColor.RED + "You must be a player to execute that command!");
             return true;
@@ -349,32 +427,47 @@ public class PositionalDiscord extends JavaPlugin implements CommandExecutor, Li
         return outcome;
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+        // the voice handshake takes a second or two, overlap it with the login
+        forwarder.onMinecraftPreLogin(event.getUniqueId());
+    }
+
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
+        Integer channel = playerChannels.get(event.getPlayer().getUniqueId());
+        if (channel != null) {
+            channelIndex.add(event.getPlayer(), channel);
+        }
         forwarder.onMinecraftJoin(event.getPlayer().getUniqueId());
     }
 
     @EventHandler
     public void onPlayerDisconnect(PlayerQuitEvent event) {
+        Integer channel = playerChannels.get(event.getPlayer().getUniqueId());
+        if (channel != null) {
+            channelIndex.remove(event.getPlayer(), channel);
+        }
         forwarder.onMinecraftDisconnect(event.getPlayer().getUniqueId());
     }
 
-    public ArrayList<Player> getNearbyPlayers(Player player) {
-        ArrayList<Player> players = new ArrayList<>();
-        for (Entity e : player.getNearbyEntities(128, 128, 128)) {
-            if (e instanceof Player) {
-                players.add((Player) e);
+    public void publishSnapshot() {
+        // only players with a linked discord account can hear or be heard
+        spatialIndex.clear();
+        for (Player player : getServer().getOnlinePlayers()) {
+            if (forwarder.isRegistered(player.getUniqueId())) {
+                spatialIndex.add(player, player.getLocation());
             }
         }
-        Integer playerChannel = playerChannels.get(player.getUniqueId());
-        if (playerChannel != null) {
-            for (Player otherPlayer : getPlayersInChannel(playerChannel)) {
-                if (otherPlayer != player && !players.contains(otherPlayer)) {
-                    players.add(otherPlayer);
-                }
-            }
+        PositionSnapshot snapshot = PositionSnapshot.capture(this, spatialIndex, ++tickCount);
+        if (occlusion != null) {
+            occlusion.apply(snapshot, spatialIndex, forwarder.slots.current());
         }
-        return players;
+        positionSnapshot = snapshot;
+        forwarder.recordSnapshot(snapshot);
     }
 
     public boolean checkSharedChannels(Player player1, Player player2) {
@@ -388,49 +481,76 @@ public class PositionalDiscord extends JavaPlugin implements CommandExecutor, Li
 
     public double[] getAngularVolume(Player player, Player target) {
         double[] output = new double[2];
-        double volumeModifier = getVolumeFor(player, target);
-        if (checkSharedChannels(player, target)) {
-            output[0] = volumeModifier / 2.2;
-            output[1] = volumeModifier / 2.2;
+        Location loc = target.getLocation();
+        Location playerLoc = player.getLocation();
+        if (loc.getWorld() != playerLoc.getWorld() && !checkSharedChannels(player, target)) {
             return output;
         }
-        Location loc = target.getLocation();
-        Vector toPlayer = loc.toVector().subtract(player.getLocation().toVector()).normalize();
-        toPlayer.setY(0);
         Vector lookDirection = player.getEyeLocation().getDirection().normalize();
-        lookDirection.setY(0);
-        double result = Math.atan2(lookDirection.getX() * toPlayer.getZ() - lookDirection.getZ() * toPlayer.getX(),
-                lookDirection.getX() * toPlayer.getZ() + lookDirection.getZ() * toPlayer.getX());
-        float angle = (float) ((lookDirection.angle(toPlayer) * 180) / Math.PI);
+        getAngularVolume(loc.getX() - playerLoc.getX(), loc.getY() - playerLoc.getY(), loc.getZ() - playerLoc.getZ(),
+                lookDirection.getX(), lookDirection.getZ(), getVolumeFor(player, target),
+                checkSharedChannels(player, target), factor, output);
+        return output;
+    }
 
+    /**
+     * Works out the left and right gain for a target at the given offset from a listener, taking the direction
+     * the listener is looking in (normalised, then flattened) into account. Only uses primitives so it can be
+     * called off the main thread with values from a {@link PositionSnapshot}.
+     */
+    public static void getAngularVolume(double dx, double dy, double dz, double lookX, double lookZ,
+                                        double volumeModifier, boolean sharedChannel, int factor, double[] output) {
+        if (sharedChannel) {
+            output[0] = volumeModifier * ChannelBuses.BUS_GAIN;
+            output[1] = volumeModifier * ChannelBuses.BUS_GAIN;
+            return;
+        }
+        double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        getAngularVolume(dx, dz, distance, lookX, lookZ, getDistanceMultiplier(distance, factor) * volumeModifier,
+                output);
+    }
+
+    public static double getDistanceMultiplier(double distance, int factor) {
+        return Math.min(1, Math.max(0.001, factor / distance));
+    }
+
+    /**
+     * The direction dependent part of {@link #getAngularVolume(double, double, double, double, double, double,
+     * boolean, int, double[])}, for callers that already know the distance and its multiplier.
+     */
+    public static void getAngularVolume(double dx, double dz, double distance, double lookX, double lookZ,
+                                        double distanceMultiplier, double[] output) {
         double toSet;
-        if (angle < 90) {
-            toSet = (90 - angle) / 90;
+        double result;
+        double flatLength = Math.sqrt(dx * dx + dz * dz);
+        double lookLength = Math.sqrt(lookX * lookX + lookZ * lookZ);
+        if (flatLength == 0 || lookLength == 0) {
+            // straight above, below or on top of the listener, nothing to pan towards
+            toSet = 1;
+            result = 0;
         } else {
-            toSet = (angle - 90) / 90;
-        }
-//        double distanceMultiplier = (180 - player.getLocation().distance(loc)) / 180;
-        double distanceMultiplier;
-        try {
-            distanceMultiplier = Math.min(1, Math.max(0.001, factor / player.getLocation().distance(loc)));
-        } catch (IllegalArgumentException e) {
-            distanceMultiplier = 0;
-        }
-        if (distanceMultiplier < 0) {
-            distanceMultiplier = 0;
+            // toPlayer is normalised in 3D before its Y is dropped
+            double toX = dx / distance;
+            double toZ = dz / distance;
+            result = Math.atan2(lookX * toZ - lookZ * toX, lookX * toZ + lookZ * toX);
+            double cosine = (lookX * toX + lookZ * toZ) / (lookLength * (flatLength / distance));
+            float angle = (float) ((((float) Math.acos(Math.min(Math.max(cosine, -1.0), 1.0))) * 180) / Math.PI);
+            if (angle < 90) {
+                toSet = (90 - angle) / 90;
+            } else {
+                toSet = (angle - 90) / 90;
+            }
         }
-        distanceMultiplier *= volumeModifier;
-
-        double factor = (1 + toSet) / distanceMultiplier;
 
+        // the nearer ear always gets the full multiplier, so someone close by and straight ahead is heard at unity
+        // gain in both ears, exactly as loud as their own packets forwarded untouched
         if (result < 0) {
-            output[0] = 1 / factor;
-            output[1] = toSet / factor;
+            output[0] = distanceMultiplier;
+            output[1] = toSet * distanceMultiplier;
         } else {
-            output[0] = toSet / factor;
-            output[1] = 1 / factor;
+            output[0] = toSet * distanceMultiplier;
+            output[1] = distanceMultiplier;
         }
-        return output;
     }
 
 }
@@ -0,0 +1,251 @@
+package me.tgwaffles.positionaldiscord;
+
+import net.dv8tion.jda.api.audio.OpusPacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records what came into the audio pipeline during a live session (every Opus packet from a connected player,
+ * as it arrived and whether or not anyone could hear them, and every position snapshot) into a memory-mapped
+ * ring file, so the session can be replayed offline through the whole input path.
+ * <p>
+ * Writers reserve space by bumping one atomic cursor and then write into their own part of the mapping, so
+ * recording never takes a lock and is done on JDA's receive threads. The payload is copied twice on the way,
+ * once by {@link OpusPacket#getOpusAudio()} and once into the mapping. Once the file is full the oldest records
+ * are overwritten. Records are laid out modulo the ring size, 8 byte aligned, each
+ * starting with a small header:
+ * <pre>
+ *     int magic, int type, int length (including the header), int payload bytes (packets only),
+ *     long System.nanoTime()
+ * </pre>
+ * followed for a packet by the user's snowflake (long), the SSRC, RTP sequence number and timestamp (ints), 4
+ * bytes of padding and the Opus payload.
+ * The file itself starts with a header holding the ring size and where the cursor had got to.
+ */
+public class SessionRecorder {
+    public static final int FILE_MAGIC = 0x50444350; // "PDCP"
+    public static final int RECORD_MAGIC = 0x5044524D; // "PDRM"
+    public static final int VERSION = 3;
+    public static final int FILE_HEADER = 64;
+    public static final int RECORD_HEADER = 24;
+    public static final int PACKET_FIELDS = 24;
+    // file header layout
+    public static final int CAPACITY_OFFSET = 8;
+    public static final int CURSOR_OFFSET = 16;
+
+    public static final int PACKET = 3;
+    public static final int SNAPSHOT = 2;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer mapping;
+    private final long capacity;
+    private final AtomicLong cursor = new AtomicLong();
+    private final ThreadLocal<ByteBuffer> views;
+    private volatile boolean closed;
+
+    /**
+     * @param megabytes
+     *        Size of the ring, older records are overwritten once it's full
+     */
+    public SessionRecorder(File target, int megabytes) throws IOException {
+        capacity = (long) Math.max(1, Math.min(1024, megabytes)) * 1024 * 1024;
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Couldn't create " + parent);
+        }
+        file = new RandomAccessFile(target, "rw");
+        file.setLength(0);
+        file.setLength(FILE_HEADER + capacity);
+        mapping = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER + capacity);
+        mapping.putInt(0, FILE_MAGIC);
+        mapping.putShort(4, (short) VERSION);
+        mapping.putLong(CAPACITY_OFFSET, capacity);
+        mapping.putLong(CURSOR_OFFSET, 0);
+        // bulk puts need a position, so every writing thread gets its own view of the mapping
+        views = ThreadLocal.withInitial(mapping::duplicate);
+    }
+
+    /**
+     * Records a packet as it arrived from Discord. Called from JDA's receive threads.
+     *
+     * @param nanos
+     *        When it arrived, the same time its speaker's packet ring is given
+     */
+    public void recordPacket(OpusPacket packet, long nanos) {
+        if (closed) {
+            return;
+        }
+        byte[] opus = packet.getOpusAudio();
+        int length = RECORD_HEADER + PACKET_FIELDS + opus.length;
+        long position = cursor.getAndAdd(align(length));
+        clearMagic(position);
+        long at = position + RECORD_HEADER;
+        putLong(at, packet.getUserId());
+        putInt(at + 8, (int) packet.getSSRC());
+        putInt(at + 12, packet.getSequence());
+        putInt(at + 16, packet.getTimestamp());
+        putBytes(at + PACKET_FIELDS, opus);
+        putHeader(position, PACKET, align(length), opus.length, nanos);
+    }
+
+    /**
+     * Records a snapshot just after it has been published. Called from the main thread.
+     *
+     * @param connected
+     *        Whether each player in the snapshot had a voice connection, so replay knows who to mix for
+     */
+    public void recordSnapshot(PositionSnapshot snapshot, boolean[] connected, long nanos) {
+        if (closed) {
+            return;
+        }
+        int size = snapshot.size();
+        int edges = snapshot.neighbours.length;
+        int members = snapshot.channelMembers.length;
+        long length = RECORD_HEADER
+                + 8 + 8 // size, edges, members, factor
+                + 8 // tick
+                + 8L * size // discord ids
+                + 8L * 5 * size // xs, ys, zs, lookXs, lookZs
+                + align(4L * size) * 4 // worlds, channels, channelStart, channelEnd
+                + align(4L * members) // channelMembers
+                + align(4L * (size + 1)) + align(4L * edges) // neighbourStart, neighbours
+                + align(4L * edges) // volumes
+                + align(size) * 3 + align(edges); // inChannel, audible, connected, sharedChannel
+        if (length > capacity / 4) {
+            // would wipe out most of the ring at once, not worth it
+            return;
+        }
+        long position = cursor.getAndAdd(length);
+        clearMagic(position);
+        long at = position + RECORD_HEADER;
+        putInt(at, size);
+        putInt(at + 4, edges);
+        putInt(at + 8, members);
+        putInt(at + 12, snapshot.factor);
+        putLong(at + 16, snapshot.tick);
+        at += 24;
+        for (int i = 0; i < size; i++, at += 8) {
+            putLong(at, Long.parseUnsignedLong(snapshot.discordIds[i]));
+        }
+        at = putDoubles(at, snapshot.xs);
+        at = putDoubles(at, snapshot.ys);
+        at = putDoubles(at, snapshot.zs);
+        at = putDoubles(at, snapshot.lookXs);
+        at = putDoubles(at, snapshot.lookZs);
+        at = putInts(at, snapshot.worlds);
+        at = putInts(at, snapshot.channels);
+        at = putInts(at, snapshot.channelStart);
+        at = putInts(at, snapshot.channelEnd);
+        at = putInts(at, snapshot.channelMembers);
+        at = putInts(at, snapshot.neighbourStart);
+        at = putInts(at, snapshot.neighbours);
+        for (int i = 0; i < edges; i++, at += 4) {
+            mapping.putFloat(index(at), snapshot.volumes[i]);
+        }
+        at = align(at);
+        at = putBooleans(at, snapshot.inChannel);
+        at = putBooleans(at, snapshot.audible);
+        at = putBooleans(at, connected);
+        putBooleans(at, snapshot.sharedChannel);
+        putHeader(position, SNAPSHOT, (int) length, 0, nanos);
+        // lets a file left behind by a crash be read up to here
+        mapping.putLong(CURSOR_OFFSET, cursor.get());
+    }
+
+    public long getBytesWritten() {
+        return cursor.get();
+    }
+
+    /**
+     * Stops recording and flushes the file. Records still being written by other threads may be cut short,
+     * the replay tool skips anything that doesn't check out.
+     */
+    public void close() throws IOException {
+        closed = true;
+        mapping.putLong(CURSOR_OFFSET, cursor.get());
+        mapping.force();
+        file.close();
+    }
+
+    /**
+     * Wipes whatever record from the last time round the ring was here, until this one is finished.
+     */
+    private void clearMagic(long position) {
+        putInt(position, 0);
+    }
+
+    private void putHeader(long position, int type, int length, int payload, long nanos) {
+        putInt(position + 4, type);
+        putInt(position + 8, length);
+        putInt(position + 12, payload);
+        putLong(position + 16, nanos);
+        // written last, so a reader never sees a valid header in front of a half written record
+        putInt(position, RECORD_MAGIC);
+    }
+
+    private long putDoubles(long at, double[] values) {
+        for (double value : values) {
+            mapping.putDouble(index(at), value);
+            at += 8;
+        }
+        return at;
+    }
+
+    private long putInts(long at, int[] values) {
+        for (int value : values) {
+            putInt(at, value);
+            at += 4;
+        }
+        return align(at);
+    }
+
+    private long putBooleans(long at, boolean[] values) {
+        for (boolean value : values) {
+            mapping.put(index(at++), (byte) (value ? 1 : 0));
+        }
+        return align(at);
+    }
+
+    private void putInt(long at, int value) {
+        mapping.putInt(index(at), value);
+    }
+
+    private void putLong(long at, long value) {
+        mapping.putLong(index(at), value);
+    }
+
+    private void putBytes(long at, byte[] bytes) {
+        ByteBuffer view = views.get();
+        int start = index(at);
+        // a payload can run off the end of the ring and carry on at the start
+        int first = (int) Math.min(bytes.length, FILE_HEADER + capacity - start);
+        view.position(start);
+        view.put(bytes, 0, first);
+        if (first < bytes.length) {
+            view.position(FILE_HEADER);
+            view.put(bytes, first, bytes.length - first);
+        }
+    }
+
+    /**
+     * Where a position in the ring is in the file. Anything 8 byte aligned (or 4 byte for ints) never
+     * straddles the end of the ring, since its size is a multiple of 8.
+     */
+    private int index(long at) {
+        return (int) (FILE_HEADER + at % capacity);
+    }
+
+    static long align(long length) {
+        return (length + 7) & ~7L;
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
@@ -0,0 +1,130 @@
+package me.tgwaffles.positionaldiscord;
+
+import java.util.Arrays;
+
+/**
+ * Keeps one listener's mix down to the speakers they can actually hear, so a crowd doesn't make the mix cost
+ * grow without limit.
+ * <p>
+ * Every source is scored by how loud it would come out for this listener: the speaker's recent level times
+ * the louder of its two gains. Sources scoring below the audibility threshold are dropped, and if more than
+ * the budget are left only the loudest are mixed. Sources that were mixed last tick have their score counted
+ * {@link #HYSTERESIS} times higher, so two speakers of about the same loudness don't keep swapping places and
+ * someone fading out isn't cut in and out around the threshold.
+ * Only ever used by the worker mixing that listener.
+ */
+public class SourceSelector {
+    // about 6dB
+    static final float HYSTERESIS = 2f;
+
+    private final int budget;
+    private final float threshold;
+    private float[] scores = new float[16];
+    private float[] ranked = new float[16];
+    private boolean[] keep = new boolean[16];
+    // what was mixed last tick, speakers are told apart by their input buffer
+    private AudioRingBuffer[] selected = new AudioRingBuffer[16];
+    private int selectedCount;
+    private AudioRingBuffer[] nextSelected = new AudioRingBuffer[16];
+
+    // only written by the worker mixing this listener
+    private volatile long culled;
+
+    /**
+     * @param budget
+     *        Most sources mixed at once, 0 for no limit
+     * @param threshold
+     *        Level (out of 32768) a source has to come out at to be mixed, 0 keeps everything
+     */
+    public SourceSelector(int budget, float threshold) {
+        this.budget = budget;
+        this.threshold = threshold;
+    }
+
+    public boolean isEnabled() {
+        return budget > 0 || threshold > 0;
+    }
+
+    /**
+     * Drops the sources added to the scratch that shouldn't be mixed this tick.
+     */
+    public void select(MixScratch scratch) {
+        int count = scratch.getSourceCount();
+        if (count > scores.length) {
+            int newLength = Math.max(count, scores.length * 2);
+            scores = new float[newLength];
+            ranked = new float[newLength];
+            keep = new boolean[newLength];
+        }
+        int audible = 0;
+        for (int source = 0; source < count; source++) {
+            AudioRingBuffer queue = scratch.getQueue(source);
+            float gain = Math.max(Math.abs(scratch.getLeftGain(source)), Math.abs(scratch.getRightGain(source)));
+            float score = (queue == null ? 0 : queue.currentLevel()) * gain;
+            if (wasSelected(queue)) {
+                score *= HYSTERESIS;
+            }
+            keep[source] = score >= threshold;
+            if (keep[source]) {
+                scores[source] = score;
+                ranked[audible++] = score;
+            }
+        }
+        if (budget > 0 && audible > budget) {
+            // the score the quietest source that still fits in the budget has
+            Arrays.sort(ranked, 0, audible);
+            float cutoff = ranked[audible - budget];
+            int aboveCutoff = 0;
+            for (int source = 0; source < count; source++) {
+                if (keep[source] && scores[source] > cutoff) {
+                    aboveCutoff++;
+                }
+            }
+            // ties at the cutoff go to whoever came first
+            int tiesLeft = budget - aboveCutoff;
+            for (int source = 0; source < count; source++) {
+                if (keep[source] && scores[source] <= cutoff) {
+                    keep[source] = scores[source] == cutoff && tiesLeft-- > 0;
+                }
+            }
+        }
+        scratch.retain(keep);
+        culled += count - scratch.getSourceCount();
+        remember(scratch);
+    }
+
+    private boolean wasSelected(AudioRingBuffer queue) {
+        if (queue == null) {
+            return false;
+        }
+        for (int i = 0; i < selectedCount; i++) {
+            if (selected[i] == queue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remember(MixScratch scratch) {
+        int count = scratch.getSourceCount();
+        if (count > nextSelected.length) {
+            nextSelected = new AudioRingBuffer[Math.max(count, nextSelected.length * 2)];
+        }
+        for (int source = 0; source < count; source++) {
+            nextSelected[source] = scratch.getQueue(source);
+        }
+        // swap so neither array is allocated again, and clear what's left so old buffers can be collected
+        AudioRingBuffer[] previous = selected;
+        selected = nextSelected;
+        nextSelected = previous;
+        Arrays.fill(nextSelected, 0, Math.min(selectedCount, nextSelected.length), null);
+        selectedCount = count;
+    }
+
+    /**
+     * Sources left out of this listener's mix so far.
+     */
+    public long getCulled() {
+        return culled;
+    }
+}
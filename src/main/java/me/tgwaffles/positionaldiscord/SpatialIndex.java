@@ -0,0 +1,203 @@
+package me.tgwaffles.positionaldiscord;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the horizontal plane holding only voice enabled players, rebuilt once per server tick.
+ * <p>
+ * Players in the same cell are chained together through an index array, and cells are found through a small
+ * open-addressed table keyed on world and cell coordinates, so a rebuild doesn't allocate once the arrays have
+ * grown to fit the server.
+ */
+public class SpatialIndex {
+    private static final int EMPTY = -1;
+
+    private final int cellShift;
+    private int count;
+    private Player[] players = new Player[64];
+    private int[] worldIds = new int[64];
+    private double[] xs = new double[64];
+    private double[] ys = new double[64];
+    private double[] zs = new double[64];
+    private int[] next = new int[64];
+
+    private World[] worlds = new World[4];
+    private int worldCount;
+
+    private long[] cellKeys = new long[256];
+    private int[] cellHeads = new int[256];
+
+    /**
+     * @param cellSize
+     *        Width of a grid cell in blocks, rounded up to a power of two
+     */
+    public SpatialIndex(int cellSize) {
+        cellShift = 32 - Integer.numberOfLeadingZeros(Math.max(1, cellSize - 1));
+        Arrays.fill(cellHeads, EMPTY);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Player getPlayer(int index) {
+        return players[index];
+    }
+
+    public int getWorldId(int index) {
+        return worldIds[index];
+    }
+
+    public World getWorld(int index) {
+        return worlds[worldIds[index]];
+    }
+
+    public double getX(int index) {
+        return xs[index];
+    }
+
+    public double getY(int index) {
+        return ys[index];
+    }
+
+    public double getZ(int index) {
+        return zs[index];
+    }
+
+    public void clear() {
+        Arrays.fill(players, 0, count, null);
+        Arrays.fill(worlds, 0, worldCount, null);
+        count = 0;
+        worldCount = 0;
+        Arrays.fill(cellHeads, EMPTY);
+    }
+
+    public void add(Player player, Location location) {
+        if (count == players.length) {
+            grow();
+        }
+        int index = count++;
+        players[index] = player;
+        worldIds[index] = worldId(location.getWorld());
+        xs[index] = location.getX();
+        ys[index] = location.getY();
+        zs[index] = location.getZ();
+        if (count * 2 > cellKeys.length) {
+            // the rehash inserts the new player along with everyone else
+            rehash(cellKeys.length * 2);
+        } else {
+            insert(index);
+        }
+    }
+
+    /**
+     * Writes the index of every player within range blocks (on each axis, like {@link Player#getNearbyEntities})
+     * of the given player into output from offset onwards, and returns the offset after the last one written.
+     * The output needs room for {@link #size()} entries past the offset.
+     */
+    public int collectNearby(int index, double range, int[] output, int offset) {
+        int worldId = worldIds[index];
+        double x = xs[index];
+        double y = ys[index];
+        double z = zs[index];
+        int minCellX = (int) Math.floor(x - range) >> cellShift;
+        int maxCellX = (int) Math.floor(x + range) >> cellShift;
+        int minCellZ = (int) Math.floor(z - range) >> cellShift;
+        int maxCellZ = (int) Math.floor(z + range) >> cellShift;
+        for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+            for (int cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+                int slot = findCell(cellKey(worldId, cellX, cellZ));
+                if (slot == EMPTY) {
+                    continue;
+                }
+                for (int i = cellHeads[slot]; i != EMPTY; i = next[i]) {
+                    if (i == index) {
+                        continue;
+                    }
+                    if (Math.abs(xs[i] - x) <= range && Math.abs(ys[i] - y) <= range
+                            && Math.abs(zs[i] - z) <= range) {
+                        output[offset++] = i;
+                    }
+                }
+            }
+        }
+        return offset;
+    }
+
+    private int worldId(World world) {
+        int id = findWorld(world);
+        if (id != EMPTY) {
+            return id;
+        }
+        if (worldCount == worlds.length) {
+            worlds = Arrays.copyOf(worlds, worldCount * 2);
+        }
+        worlds[worldCount] = world;
+        return worldCount++;
+    }
+
+    private int findWorld(World world) {
+        // servers only ever have a handful of worlds, a scan beats hashing here
+        for (int i = 0; i < worldCount; i++) {
+            if (worlds[i] == world) {
+                return i;
+            }
+        }
+        return EMPTY;
+    }
+
+    private long cellKey(int worldId, int cellX, int cellZ) {
+        return ((long) worldId << 48) ^ ((long) (cellX & 0xFFFFFF) << 24) ^ (cellZ & 0xFFFFFF);
+    }
+
+    private static int mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private int findCell(long key) {
+        int mask = cellKeys.length - 1;
+        for (int slot = mix(key) & mask; cellHeads[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (cellKeys[slot] == key) {
+                return slot;
+            }
+        }
+        return EMPTY;
+    }
+
+    private void insert(int index) {
+        long key = cellKey(worldIds[index], (int) Math.floor(xs[index]) >> cellShift,
+                (int) Math.floor(zs[index]) >> cellShift);
+        int mask = cellKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (cellHeads[slot] != EMPTY && cellKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        next[index] = cellHeads[slot];
+        cellKeys[slot] = key;
+        cellHeads[slot] = index;
+    }
+
+    private void rehash(int newLength) {
+        cellKeys = new long[newLength];
+        cellHeads = new int[newLength];
+        Arrays.fill(cellHeads, EMPTY);
+        for (int i = 0; i < count; i++) {
+            insert(i);
+        }
+    }
+
+    private void grow() {
+        int newLength = players.length * 2;
+        players = Arrays.copyOf(players, newLength);
+        worldIds = Arrays.copyOf(worldIds, newLength);
+        xs = Arrays.copyOf(xs, newLength);
+        ys = Arrays.copyOf(ys, newLength);
+        zs = Arrays.copyOf(zs, newLength);
+        next = Arrays.copyOf(next, newLength);
+    }
+}
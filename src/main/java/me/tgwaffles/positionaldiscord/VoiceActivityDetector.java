@@ -0,0 +1,66 @@
+package me.tgwaffles.positionaldiscord;
+
+/**
+ * Energy based voice activity check for one speaker's decoded frames.
+ * <p>
+ * Frames quieter than the threshold are dropped before they reach the mixer, so a speaker who is only
+ * sending background noise costs nothing to mix and, if nobody else is talking, their listeners get no
+ * packets at all. Speech keeps the gate open for a few frames afterwards so the ends of words aren't cut off.
+ * Only ever used by the worker decoding that speaker.
+ */
+public class VoiceActivityDetector {
+    // 200ms
+    private static final int HANGOVER_FRAMES = 10;
+
+    private final long thresholdSquared;
+    private int hangover;
+    private int level;
+
+    private long silentFrames;
+
+    /**
+     * @param threshold
+     *        RMS level of a 16 bit sample below which a frame counts as silent, 0 lets everything through
+     */
+    public VoiceActivityDetector(int threshold) {
+        thresholdSquared = (long) threshold * threshold;
+    }
+
+    /**
+     * @return whether the frame should be kept
+     */
+    public boolean accept(short[] samples, int length) {
+        if (length == 0) {
+            return thresholdSquared == 0;
+        }
+        long energy = 0;
+        for (int i = 0; i < length; i++) {
+            int sample = samples[i];
+            energy += sample * sample;
+        }
+        // follows peaks straight away and falls back over a few frames, so a pause between words doesn't
+        // make the speaker look quiet to the mixer
+        level = Math.max((int) Math.sqrt((double) energy / length), level - (level >> 2));
+        if (energy >= thresholdSquared * length) {
+            hangover = HANGOVER_FRAMES;
+            return true;
+        }
+        if (hangover > 0) {
+            hangover--;
+            return true;
+        }
+        silentFrames++;
+        return false;
+    }
+
+    /**
+     * How loud the speaker has been over the last few frames, as an RMS sample level.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    public long getSilentFrames() {
+        return silentFrames;
+    }
+}
@@ -0,0 +1,252 @@
+package me.tgwaffles.positionaldiscord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Gives every player with a voice connection a small slot number for as long as they stay connected, and keeps
+ * their audio streams in arrays indexed by it.
+ * <p>
+ * The audio threads look a player up by their Discord snowflake (as a long) once a tick, or once a packet,
+ * and from then on only deal in slots, instead of hashing strings for every listener and speaker pair.
+ * Connecting and disconnecting are rare, so they build a new {@link Table} and publish it whole. A table is
+ * never changed once published, so it can be read from any thread without locks. Freed slots are handed to
+ * the next player to connect.
+ */
+public class VoiceSlots {
+    private volatile Table table = new Table(16);
+
+    // the table every stage of the current tick uses, and who is where in it, only written by the tick thread
+    // before any worker reads them
+    private Table tickTable = table;
+    private int[] slotOfPlayer = new int[64];
+    private int[] playerOfSlot = new int[16];
+
+    /**
+     * Opens a slot with fresh streams for a player, replacing any they already had.
+     *
+     * @return the player's slot
+     */
+    public synchronized int open(String discordId, int voiceActivityThreshold) {
+        long snowflake = Long.parseUnsignedLong(discordId);
+        Table current = table;
+        int slot = current.slotOf(snowflake);
+        if (slot < 0) {
+            slot = current.freeSlot();
+        }
+        Table next = current.copy(slot >= current.capacity() ? current.capacity() * 2 : current.capacity());
+        next.snowflakes[slot] = snowflake;
+        next.packets[slot] = new PacketRing(16);
+        next.jitterBuffers[slot] = new JitterBuffer();
+        next.gates[slot] = new VoiceActivityDetector(voiceActivityThreshold);
+        next.inputs[slot] = new AudioRingBuffer(8, MixScratch.MONO_SAMPLES);
+        next.outputs[slot] = new AudioRingBuffer(16, MixScratch.FRAME_SAMPLES);
+        next.index();
+        table = next;
+        return slot;
+    }
+
+    /**
+     * Frees the player's slot, as long as it is still the one with the given output buffer. A player's slot is
+     * handed to their newest connection whenever they connect again, so an older one being closed leaves it be.
+     */
+    public synchronized void close(String discordId, AudioRingBuffer output) {
+        Table current = table;
+        int slot = current.slotOf(Long.parseUnsignedLong(discordId));
+        if (slot < 0 || current.outputs[slot] != output) {
+            return;
+        }
+        Table next = current.copy(current.capacity());
+        next.snowflakes[slot] = 0;
+        next.packets[slot] = null;
+        next.jitterBuffers[slot] = null;
+        next.gates[slot] = null;
+        next.inputs[slot] = null;
+        next.outputs[slot] = null;
+        next.index();
+        table = next;
+    }
+
+    /**
+     * The latest table, for anything outside the mixer's tick.
+     */
+    public Table current() {
+        return table;
+    }
+
+    /**
+     * The input buffer of a connected player, or null. For the load test and replay tools, which feed it directly.
+     */
+    public AudioRingBuffer inputOf(String discordId) {
+        Table current = table;
+        int slot = current.slotOf(Long.parseUnsignedLong(discordId));
+        return slot < 0 ? null : current.inputs[slot];
+    }
+
+    public boolean isOpen(String discordId) {
+        return discordId != null && table.slotOf(Long.parseUnsignedLong(discordId)) >= 0;
+    }
+
+    /**
+     * Takes the latest table for the tick about to run and works out the slot of every player in the snapshot.
+     * Only called from the mixer's tick thread.
+     */
+    void beginTick(PositionSnapshot positions) {
+        Table current = table;
+        tickTable = current;
+        int size = positions.size();
+        if (slotOfPlayer.length < size) {
+            slotOfPlayer = new int[Math.max(size, slotOfPlayer.length * 2)];
+        }
+        if (playerOfSlot.length < current.capacity()) {
+            playerOfSlot = new int[current.capacity()];
+        }
+        Arrays.fill(playerOfSlot, -1);
+        for (int player = 0; player < size; player++) {
+            int slot = current.slotOf(positions.snowflakes[player]);
+            slotOfPlayer[player] = slot;
+            if (slot >= 0) {
+                playerOfSlot[slot] = player;
+            }
+        }
+    }
+
+    /**
+     * The table the current tick is using.
+     */
+    Table tick() {
+        return tickTable;
+    }
+
+    /**
+     * @return the index in the tick's snapshot of the player in this slot, or -1 if they aren't in it
+     */
+    int playerOf(int slot) {
+        return slot < playerOfSlot.length ? playerOfSlot[slot] : -1;
+    }
+
+    /**
+     * The input buffer of the player at this index in the tick's snapshot, or null if they aren't connected.
+     */
+    AudioRingBuffer input(int player) {
+        int slot = slotOfPlayer[player];
+        return slot < 0 ? null : tickTable.inputs[slot];
+    }
+
+    /**
+     * Every open slot's streams of one kind, for adding up their counters.
+     */
+    public static <T> List<T> collect(T[] streams) {
+        List<T> open = new ArrayList<>();
+        for (T stream : streams) {
+            if (stream != null) {
+                open.add(stream);
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Every connected player's streams, in arrays indexed by slot. Free slots have a snowflake of 0 and no streams.
+     */
+    public static final class Table {
+        final long[] snowflakes;
+        final PacketRing[] packets;
+        final JitterBuffer[] jitterBuffers;
+        final VoiceActivityDetector[] gates;
+        final AudioRingBuffer[] inputs;
+        final AudioRingBuffer[] outputs;
+        private int count;
+        // open addressing from snowflake to slot, keys of 0 are empty
+        private long[] keys = new long[0];
+        private int[] values = new int[0];
+
+        private Table(int capacity) {
+            snowflakes = new long[capacity];
+            packets = new PacketRing[capacity];
+            jitterBuffers = new JitterBuffer[capacity];
+            gates = new VoiceActivityDetector[capacity];
+            inputs = new AudioRingBuffer[capacity];
+            outputs = new AudioRingBuffer[capacity];
+            index();
+        }
+
+        private Table copy(int capacity) {
+            Table copy = new Table(capacity);
+            int length = snowflakes.length;
+            System.arraycopy(snowflakes, 0, copy.snowflakes, 0, length);
+            System.arraycopy(packets, 0, copy.packets, 0, length);
+            System.arraycopy(jitterBuffers, 0, copy.jitterBuffers, 0, length);
+            System.arraycopy(gates, 0, copy.gates, 0, length);
+            System.arraycopy(inputs, 0, copy.inputs, 0, length);
+            System.arraycopy(outputs, 0, copy.outputs, 0, length);
+            return copy;
+        }
+
+        private void index() {
+            count = 0;
+            for (long snowflake : snowflakes) {
+                if (snowflake != 0) {
+                    count++;
+                }
+            }
+            int size = Integer.highestOneBit(Math.max(4, count * 2 - 1)) << 1;
+            keys = new long[size];
+            values = new int[size];
+            for (int slot = 0; slot < snowflakes.length; slot++) {
+                if (snowflakes[slot] == 0) {
+                    continue;
+                }
+                int at = hash(snowflakes[slot]) & (size - 1);
+                while (keys[at] != 0) {
+                    at = (at + 1) & (size - 1);
+                }
+                keys[at] = snowflakes[slot];
+                values[at] = slot;
+            }
+        }
+
+        private int freeSlot() {
+            for (int slot = 0; slot < snowflakes.length; slot++) {
+                if (snowflakes[slot] == 0) {
+                    return slot;
+                }
+            }
+            return snowflakes.length;
+        }
+
+        /**
+         * @return the player's slot, or -1 if they aren't connected
+         */
+        public int slotOf(long snowflake) {
+            if (snowflake == 0) {
+                return -1;
+            }
+            int mask = keys.length - 1;
+            for (int at = hash(snowflake) & mask; keys[at] != 0; at = (at + 1) & mask) {
+                if (keys[at] == snowflake) {
+                    return values[at];
+                }
+            }
+            return -1;
+        }
+
+        public int capacity() {
+            return snowflakes.length;
+        }
+
+        /**
+         * How many slots are in use.
+         */
+        public int size() {
+            return count;
+        }
+
+        private static int hash(long snowflake) {
+            // the low bits of a snowflake are a per-process counter, mix the timestamp bits in too
+            long mixed = snowflake * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32));
+        }
+    }
+}